@@ -0,0 +1,144 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.shared;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import org.exist.xquery.XQueryContext;
+import rx.Observable;
+import rx.Subscription;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pending asynchronous operations of one XQuery, stored as attribute of the XQueryContext.
+ * The operations are started when registered, the results are collected with couchbase:await().
+ * Operations that are not awaited are discarded when they expire or when their connection is closed.
+ *
+ * @author Dannes Wessels
+ */
+public class AsyncHandles {
+
+    private static final String ATTRIBUTE = AsyncHandles.class.getName();
+
+    private static final String HANDLE_PREFIX = "couchbase-async-";
+
+    /**
+     * Time the result of an operation is kept after its timeout (milliseconds)
+     */
+    private static final long RETENTION = TimeUnit.MINUTES.toMillis(5);
+
+    private final AtomicLong counter = new AtomicLong();
+
+    private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Get the pending operations of the XQuery, create when needed.
+     *
+     * @param context The XQuery context
+     * @return The pending operations
+     */
+    public static AsyncHandles getInstance(final XQueryContext context) {
+        AsyncHandles handles = (AsyncHandles) context.getAttribute(ATTRIBUTE);
+        if (handles == null) {
+            handles = new AsyncHandles();
+            context.setAttribute(ATTRIBUTE, handles);
+        }
+        return handles;
+    }
+
+    /**
+     * Start the operation and register it.
+     *
+     * @param connection The connection, used for error counters
+     * @param operation  The asynchronous operation
+     * @param timeout    Timeout of the operation (milliseconds)
+     * @return Handle of the operation
+     */
+    public String register(final CouchbaseClusterConnection connection, final Observable<JsonObject> operation, final long timeout) {
+
+        // Discard operations that will not be awaited
+        purge();
+
+        final CompletableFuture<List<JsonObject>> future = new CompletableFuture<>();
+
+        final Subscription subscription = operation.timeout(timeout, TimeUnit.MILLISECONDS)
+                .toList()
+                .subscribe(future::complete, future::completeExceptionally);
+
+        final String handle = HANDLE_PREFIX + counter.incrementAndGet();
+        pending.put(handle, new Pending(connection, future, subscription, System.currentTimeMillis() + timeout + RETENTION));
+
+        return handle;
+    }
+
+    /**
+     * Remove the operations that are expired or of which the connection has been closed.
+     */
+    private void purge() {
+        final long now = System.currentTimeMillis();
+        pending.values().removeIf(operation -> {
+            if (now < operation.expires && !operation.connection.isClosed()) {
+                return false;
+            }
+            operation.subscription.unsubscribe();
+            operation.future.cancel(false);
+            return true;
+        });
+    }
+
+    /**
+     * Remove the pending operation, a handle can be awaited once.
+     *
+     * @param handle Handle of the operation
+     * @return The pending operation, NULL when the handle is not known.
+     */
+    public Pending remove(final String handle) {
+        return pending.remove(handle);
+    }
+
+    public static final class Pending {
+
+        private final CouchbaseClusterConnection connection;
+        private final CompletableFuture<List<JsonObject>> future;
+        private final Subscription subscription;
+        private final long expires;
+
+        private Pending(final CouchbaseClusterConnection connection, final CompletableFuture<List<JsonObject>> future,
+                        final Subscription subscription, final long expires) {
+            this.connection = connection;
+            this.future = future;
+            this.subscription = subscription;
+            this.expires = expires;
+        }
+
+        public CouchbaseClusterConnection getConnection() {
+            return connection;
+        }
+
+        public CompletableFuture<List<JsonObject>> getFuture() {
+            return future;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.shared;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non blocking protection against brute force guessing: each subject has a token bucket
+ * of failed attempts. When the bucket is exhausted, the subject is refused until tokens
+ * have been refilled.
+ *
+ * @author Dannes Wessels
+ */
+public class AttemptThrottle {
+
+    private final long capacity;
+
+    private final long refillIntervalNanos;
+
+    private final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * @param capacity       Maximum number of failed attempts in a burst
+     * @param refillInterval Period after which one attempt is allowed again
+     * @param unit           Unit of the period
+     */
+    public AttemptThrottle(final long capacity, final long refillInterval, final TimeUnit unit) {
+        this.capacity = capacity;
+        this.refillIntervalNanos = unit.toNanos(refillInterval);
+    }
+
+    /**
+     * Check if the subject has exhausted the failed attempts. Does not allocate for
+     * subjects without failed attempts.
+     *
+     * @param subject Name of the subject
+     * @return TRUE when no attempts are left.
+     */
+    public boolean isExhausted(final String subject) {
+        final TokenBucket bucket = buckets.get(subject == null ? "" : subject);
+        return bucket != null && bucket.isExhausted(System.nanoTime());
+    }
+
+    /**
+     * Register a failed attempt.
+     *
+     * @param subject Name of the subject
+     * @return FALSE when the subject had no attempts left.
+     */
+    public boolean registerFailure(final String subject) {
+        final String key = (subject == null) ? "" : subject;
+        TokenBucket bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = buckets.computeIfAbsent(key, k -> new TokenBucket(capacity, refillIntervalNanos));
+        }
+        return bucket.tryAcquire(System.nanoTime());
+    }
+
+    private static final class TokenBucket {
+
+        private final long capacity;
+        private final long refillIntervalNanos;
+
+        private long tokens;
+        private long lastRefill;
+
+        private TokenBucket(final long capacity, final long refillIntervalNanos) {
+            this.capacity = capacity;
+            this.refillIntervalNanos = refillIntervalNanos;
+            this.tokens = capacity;
+            this.lastRefill = System.nanoTime();
+        }
+
+        private void refill(final long now) {
+            final long refills = (now - lastRefill) / refillIntervalNanos;
+            if (refills > 0) {
+                tokens = Math.min(capacity, tokens + refills);
+                lastRefill = (tokens == capacity) ? now : lastRefill + refills * refillIntervalNanos;
+            }
+        }
+
+        private synchronized boolean isExhausted(final long now) {
+            refill(now);
+            return tokens <= 0;
+        }
+
+        private synchronized boolean tryAcquire(final long now) {
+            refill(now);
+            if (tokens <= 0) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
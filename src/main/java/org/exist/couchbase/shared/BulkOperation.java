@@ -0,0 +1,113 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.shared;
+
+import rx.Observable;
+import rx.functions.Func1;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan out an asynchronous operation over a collection of keys, with a cap on the number of
+ * concurrent requests. Failures are collected per key, one failing key does not cancel the others.
+ *
+ * @author Dannes Wessels
+ */
+public class BulkOperation {
+
+    /**
+     * Default maximum number of concurrent requests
+     */
+    public static final int DEFAULT_CONCURRENCY = 32;
+
+    private BulkOperation() {
+        // Utility class
+    }
+
+    /**
+     * Result of the operation for one key.
+     *
+     * @param <T> Type of the value
+     */
+    public static final class Result<T> {
+
+        private final String key;
+        private final T value;
+        private final Throwable error;
+
+        private Result(final String key, final T value, final Throwable error) {
+            this.key = key;
+            this.value = value;
+            this.error = error;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return The value, NULL when the operation did not emit a value or failed.
+         */
+        public T getValue() {
+            return value;
+        }
+
+        /**
+         * @return The failure, NULL when the operation succeeded.
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        public boolean isFailed() {
+            return error != null;
+        }
+    }
+
+    /**
+     * Execute the operation for all keys and wait for the results.
+     *
+     * @param keys        The keys
+     * @param operation   Asynchronous operation for one key, emits at most one value
+     * @param concurrency Maximum number of concurrent requests
+     * @param timeout     Timeout of the operation for one key (milliseconds)
+     * @param <T>         Type of the value
+     * @return The results, in order of completion.
+     */
+    public static <T> List<Result<T>> execute(final Collection<String> keys, final Func1<String, Observable<T>> operation,
+                                              final int concurrency, final long timeout) {
+
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException(String.format("Concurrency must be a positive value (%s)", concurrency));
+        }
+
+        return Observable.from(keys)
+                .flatMap(key -> operation.call(key)
+                        .timeout(timeout, TimeUnit.MILLISECONDS)
+                        .map(value -> new Result<>(key, value, null))
+                        .defaultIfEmpty(new Result<>(key, null, null))
+                        .onErrorReturn(ex -> new Result<>(key, null, ex)), concurrency)
+                .toList()
+                .toBlocking()
+                .single();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.shared;
+
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.ByteBufInputStream;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Move bytes between Netty buffers and streams without an intermediate byte array.
+ *
+ * @author Dannes Wessels
+ */
+public class ByteBufTools {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private ByteBufTools() {
+        // Utility class
+    }
+
+    /**
+     * Read the buffer as stream, the buffer is released when the stream is closed.
+     *
+     * @param buffer The buffer, ownership is transferred to the stream
+     * @return The stream
+     */
+    public static InputStream toInputStream(final ByteBuf buffer) {
+        return new ByteBufInputStream(buffer, true);
+    }
+
+    /**
+     * Read the stream into a new buffer, the bytes are read directly into the buffer.
+     *
+     * @param is The stream, not closed
+     * @return The buffer, the caller is responsible for releasing it.
+     * @throws IOException The stream could not be read, the buffer has been released.
+     */
+    public static ByteBuf toByteBuf(final InputStream is) throws IOException {
+        return toByteBuf(is, Unpooled.buffer());
+    }
+
+    /**
+     * Read the stream into the buffer, the bytes are read directly into the buffer.
+     *
+     * @param is     The stream, not closed
+     * @param buffer The buffer, grows when needed
+     * @return The buffer, the caller is responsible for releasing it.
+     * @throws IOException The stream could not be read, the buffer has been released.
+     */
+    public static ByteBuf toByteBuf(final InputStream is, final ByteBuf buffer) throws IOException {
+        try {
+            while (buffer.writeBytes(is, CHUNK_SIZE) > 0) {
+                // Buffer grows when needed
+            }
+            return buffer;
+
+        } catch (final IOException | RuntimeException ex) {
+            buffer.release();
+            throw ex;
+        }
+    }
+}
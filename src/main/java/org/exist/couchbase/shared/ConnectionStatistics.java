@@ -0,0 +1,148 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.shared;
+
+import org.exist.dom.memtree.MemTreeBuilder;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Invocation and error counters of a cluster connection. The counters are striped
+ * (LongAdder) so that concurrent updates do not contend on a single memory location.
+ *
+ * @author Dannes Wessels
+ */
+public class ConnectionStatistics {
+
+    /**
+     * Counted operations
+     */
+    public enum Operation {
+        GET, UPSERT, INSERT, REMOVE, VIEW, N1QL, LOOKUP, MUTATE, COUNTER, EXISTS;
+
+        public String getName() {
+            return name().toLowerCase(Locale.US);
+        }
+    }
+
+    private final LongAdder[] operations = new LongAdder[Operation.values().length];
+
+    /**
+     * Errors, keyed by the COBA error code
+     */
+    private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    public ConnectionStatistics() {
+        for (int i = 0; i < operations.length; i++) {
+            operations[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Count the invocation of an operation.
+     *
+     * @param operation The operation
+     */
+    public void increase(final Operation operation) {
+        operations[operation.ordinal()].increment();
+    }
+
+    /**
+     * Count multiple invocations of an operation, e.g. for bulk operations.
+     *
+     * @param operation The operation
+     * @param count     Number of invocations
+     */
+    public void increase(final Operation operation, final long count) {
+        operations[operation.ordinal()].add(count);
+    }
+
+    /**
+     * Count an error.
+     *
+     * @param errorCode The COBA error code, e.g. COBA0018
+     */
+    public void increaseErrors(final String errorCode) {
+        LongAdder counter = errors.get(errorCode);
+        if (counter == null) {
+            counter = errors.computeIfAbsent(errorCode, k -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    public long get(final Operation operation) {
+        return operations[operation.ordinal()].sum();
+    }
+
+    /**
+     * Get total number of counted invocations.
+     *
+     * @return Sum of all operation counters.
+     */
+    public long getTotal() {
+        long total = 0L;
+        for (final LongAdder counter : operations) {
+            total += counter.sum();
+        }
+        return total;
+    }
+
+    public long getErrors(final String errorCode) {
+        final LongAdder counter = errors.get(errorCode);
+        return counter == null ? 0L : counter.sum();
+    }
+
+    public void getReport(final MemTreeBuilder builder) {
+
+        builder.startElement("", "operations", "operations", null);
+        for (final Operation operation : Operation.values()) {
+            builder.startElement("", operation.getName(), operation.getName(), null);
+            builder.characters(Long.toString(get(operation)));
+            builder.endElement();
+        }
+        builder.endElement();
+
+        builder.startElement("", "errors", "errors", null);
+
+        // Sorted for a stable report
+        final Map<String, LongAdder> sorted = new TreeMap<>(errors);
+        sorted.forEach((code, counter) -> {
+            builder.startElement("", "error", "error", null);
+
+            builder.startElement("", "code", "code", null);
+            builder.characters(code);
+            builder.endElement();
+
+            builder.startElement("", "count", "count", null);
+            builder.characters(Long.toString(counter.sum()));
+            builder.endElement();
+
+            builder.endElement();
+        });
+
+        builder.endElement();
+    }
+
+}
@@ -24,11 +24,16 @@ import com.couchbase.client.java.transcoder.JsonTranscoder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.xquery.XPathException;
+import org.exist.xquery.functions.array.ArrayType;
 import org.exist.xquery.functions.map.AbstractMapType;
 import org.exist.xquery.value.*;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Helper class for converting JSON documents
@@ -72,6 +77,18 @@ public class ConversionTools {
      * @throws XPathException Something happened during the value conversion
      */
     public static Map<String, Object> convert(final AbstractMapType map) throws XPathException {
+        return convert(map, Collections.emptySet());
+    }
+
+    /**
+     * Convert an MAPtype into a easy to use HashMap
+     *
+     * @param map         The xquery map
+     * @param skippedKeys Keys that are not converted, e.g. because they contain sequences.
+     * @return Java hashmap containing the map values
+     * @throws XPathException Something happened during the value conversion
+     */
+    public static Map<String, Object> convert(final AbstractMapType map, final Set<String> skippedKeys) throws XPathException {
 
         // Results are stored here
         final Map<String, Object> retVal = new HashMap<>();
@@ -88,6 +105,10 @@ public class ConversionTools {
             // Only use Strings as key, as required by JMS
             final String keyValue = key.getStringValue();
 
+            if (skippedKeys.contains(keyValue)) {
+                continue;
+            }
+
             // Get values
             final Sequence values = map.get((AtomicValue) key);
 
@@ -124,6 +145,50 @@ public class ConversionTools {
         return retVal;
     }
 
+    /**
+     * Get the string values of a map entry, the value can be a sequence or an array.
+     *
+     * @param map The xquery map
+     * @param key The key of the entry
+     * @return The values, empty when the key is not present.
+     * @throws XPathException Something happened during the value conversion
+     */
+    public static List<String> getStringValues(final AbstractMapType map, final String key) throws XPathException {
+
+        final Sequence values = map.get(new StringValue(key));
+        if (values == null) {
+            return new ArrayList<>();
+        }
+
+        return getStringValues(values);
+    }
+
+    /**
+     * Get the string values of a sequence, members of arrays are added individually.
+     *
+     * @param values The sequence
+     * @return The string values
+     * @throws XPathException A value could not be converted.
+     */
+    public static List<String> getStringValues(final Sequence values) throws XPathException {
+
+        final List<String> retVal = new ArrayList<>();
+
+        for (final SequenceIterator i = values.iterate(); i.hasNext(); ) {
+            final Item item = i.nextItem();
+
+            if (item.getType() == Type.ARRAY) {
+                for (final Sequence member : ((ArrayType) item).toArray()) {
+                    retVal.add(member.getStringValue());
+                }
+            } else {
+                retVal.add(item.getStringValue());
+            }
+        }
+
+        return retVal;
+    }
+
     public static int getIntegerValue(final String key, final Object obj, final int defaultValue) throws IllegalArgumentException {
         if (obj == null) {
             return defaultValue;
@@ -157,5 +222,25 @@ public class ConversionTools {
         return (Long) obj;
     }
 
+    public static long getLongValue(final String key, final Object obj, final long defaultValue) throws IllegalArgumentException {
+        if (obj == null) {
+            return defaultValue;
+        }
+        if (!(obj instanceof Integer) && !(obj instanceof Long)) {
+            throw new IllegalArgumentException(String.format("Map item '%s' is not an Integer value (%s)", key, obj.toString()));
+        }
+        return ((Number) obj).longValue();
+    }
+
+    public static String getStringValue(final String key, final Object obj, final String defaultValue) throws IllegalArgumentException {
+        if (obj == null) {
+            return defaultValue;
+        }
+        if (!(obj instanceof String)) {
+            throw new IllegalArgumentException(String.format("Map item '%s' is not a String value (%s)", key, obj.toString()));
+        }
+        return (String) obj;
+    }
+
 
 }
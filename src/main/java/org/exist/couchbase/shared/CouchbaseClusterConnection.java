@@ -19,13 +19,24 @@
  */
 package org.exist.couchbase.shared;
 
+import com.couchbase.client.core.message.internal.PingReport;
+import com.couchbase.client.core.message.internal.PingServiceHealth;
+import com.couchbase.client.core.service.ServiceType;
+import com.couchbase.client.java.Bucket;
 import com.couchbase.client.java.CouchbaseCluster;
+import com.couchbase.client.java.document.json.JsonObject;
 import org.apache.commons.lang3.time.DateFormatUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.exist.dom.memtree.MemTreeBuilder;
 
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.GregorianCalendar;
-import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Container for a Couchbase cluster connection.
@@ -34,7 +45,7 @@ import java.util.UUID;
  */
 public class CouchbaseClusterConnection {
 
-    private static final Object LOCK = new Object();
+    protected final static Logger LOG = LogManager.getLogger(CouchbaseClusterConnection.class);
 
     private final String username;
 
@@ -44,20 +55,67 @@ public class CouchbaseClusterConnection {
 
     private final Calendar creation;
 
-    private final CouchbaseCluster cluster;
-    private final UUID connectionId;
-    private long invokes = 0L;
+    private final SharedCluster sharedCluster;
+    private final String connectionId;
 
-    public CouchbaseClusterConnection(final CouchbaseCluster cluster, final String username, final String bucketPassword, final String connectionString, final UUID connectionId) {
-        this.cluster = cluster;
+    /**
+     * Connection declared in conf.xml, never evicted
+     */
+    private final boolean pinned;
+
+    private final String environmentName;
+
+    private final ConnectionStatistics statistics = new ConnectionStatistics();
+
+    /**
+     * Cache of retrieved documents, NULL when not enabled
+     */
+    private final NearCache nearCache;
+
+    /**
+     * Cache of absent documents, NULL when not enabled
+     */
+    private final NegativeCache negativeCache;
+
+    /**
+     * Concurrent retrievals of the same document share one request
+     */
+    private final RequestCoalescer<JsonObject> getCoalescer = new RequestCoalescer<>();
+
+    /**
+     * Deferred upserts, created on first use
+     */
+    private volatile WriteBehindBuffer writeBehindBuffer = null;
+
+    /**
+     * Set when the connection is removed from the manager
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Time of last use (milliseconds), with a resolution of a second to limit writes.
+     */
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    private final LongAdder bucketCacheHits = new LongAdder();
+    private final LongAdder bucketCacheMisses = new LongAdder();
+
+    CouchbaseClusterConnection(final SharedCluster sharedCluster, final String username, final String bucketPassword,
+                               final String connectionString, final String connectionId, final String environmentName,
+                               final boolean pinned, final NearCache nearCache, final NegativeCache negativeCache) {
+        this.sharedCluster = sharedCluster;
         this.username = username;
         this.bucketPassword = bucketPassword;
         this.connectionString = connectionString;
         this.creation = new GregorianCalendar();
         this.connectionId = connectionId;
+        this.environmentName = environmentName;
+        this.pinned = pinned;
+        this.nearCache = nearCache;
+        this.negativeCache = negativeCache;
     }
 
-    public UUID getConnectionId() {
+    public String getConnectionId() {
         return connectionId;
     }
 
@@ -66,7 +124,11 @@ public class CouchbaseClusterConnection {
     }
 
     public CouchbaseCluster getCluster() {
-        return cluster;
+        return sharedCluster.getCluster();
+    }
+
+    SharedCluster getSharedCluster() {
+        return sharedCluster;
     }
 
     public String getUsername() {
@@ -77,23 +139,215 @@ public class CouchbaseClusterConnection {
         return connectionString;
     }
 
+    public String getEnvironmentName() {
+        return environmentName;
+    }
+
+    /**
+     * Check if the connection has been declared in conf.xml.
+     *
+     * @return TRUE when the connection is never evicted.
+     */
+    public boolean isPinned() {
+        return pinned;
+    }
+
+    /**
+     * @return TRUE when the connection has been removed from the manager.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
     public Calendar getCreation() {
         return creation;
     }
 
+    /**
+     * Register usage of the connection.
+     */
+    public void touch() {
+        final long now = System.currentTimeMillis();
+        if (now - lastUsed >= 1000L) {
+            lastUsed = now;
+        }
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
     /**
      * Get number of invocations
      *
      * @return Number of invocations.
      */
     public long getInvokes() {
-        return invokes;
+        return statistics.getTotal();
+    }
+
+    /**
+     * Get the operation and error counters of this connection.
+     *
+     * @return The statistics
+     */
+    public ConnectionStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Get the cache of retrieved documents.
+     *
+     * @return The cache, NULL when not enabled for this connection.
+     */
+    public NearCache getNearCache() {
+        return nearCache;
     }
 
-    public long increaseInvokes() {
-        synchronized (LOCK) {
-            return (invokes++);
+    /**
+     * Get the cache of absent documents.
+     *
+     * @return The cache, NULL when not enabled for this connection.
+     */
+    public NegativeCache getNegativeCache() {
+        return negativeCache;
+    }
+
+    /**
+     * Get the coalescer for retrieving documents.
+     *
+     * @return The coalescer
+     */
+    public RequestCoalescer<JsonObject> getGetCoalescer() {
+        return getCoalescer;
+    }
+
+    /**
+     * Get the buffer for deferred upserts, create when needed.
+     *
+     * @return The buffer
+     */
+    public WriteBehindBuffer getWriteBehindBuffer() {
+        WriteBehindBuffer buffer = writeBehindBuffer;
+        if (buffer == null) {
+            synchronized (this) {
+                buffer = writeBehindBuffer;
+                if (buffer == null) {
+                    buffer = new WriteBehindBuffer(connectionId, WriteBehindBuffer.DEFAULT_CAPACITY,
+                            bucketName -> getBucket(bucketName).async(), statistics, this::invalidate);
+                    writeBehindBuffer = buffer;
+                }
+            }
         }
+        return buffer;
+    }
+
+    /**
+     * Write the pending deferred upserts, before the cluster is released.
+     *
+     * @param timeout Maximum time to wait for the pending upserts (milliseconds)
+     */
+    void close(final long timeout) {
+        closed = true;
+
+        final WriteBehindBuffer buffer = writeBehindBuffer;
+        if (buffer != null) {
+            buffer.close(timeout);
+        }
+    }
+
+    /**
+     * Remove a document from the caches of this connection, when enabled, and detach the
+     * retrieval in flight.
+     *
+     * @param bucketName Name of the bucket
+     * @param docName    Name of the document
+     */
+    public void invalidate(final String bucketName, final String docName) {
+        getCoalescer.invalidate(bucketName, docName);
+        if (nearCache != null) {
+            nearCache.invalidate(bucketName, docName);
+        }
+        if (negativeCache != null) {
+            negativeCache.invalidate(bucketName, docName);
+        }
+    }
+
+    /**
+     * Get an opened bucket, the bucket is opened only when it has not been opened before
+     * for the (shared) cluster.
+     *
+     * @param bucketName Name of the bucket
+     * @return The opened bucket
+     */
+    public Bucket getBucket(final String bucketName) {
+
+        // Fast path, avoid locking
+        final Bucket bucket = sharedCluster.getOpenBucket(bucketName);
+        if (bucket != null) {
+            bucketCacheHits.increment();
+            return bucket;
+        }
+
+        bucketCacheMisses.increment();
+        return sharedCluster.openBucket(bucketName);
+    }
+
+    /**
+     * Open buckets upfront, so that the first request does not pay for opening the bucket.
+     *
+     * @param bucketNames    Names of the buckets to open
+     * @param waitUntilReady Wait until the key/value endpoints of the buckets are connected
+     * @param timeout        Maximum time to wait for the endpoints (milliseconds)
+     * @throws TimeoutException The endpoints were not connected within the timeout.
+     */
+    public void warmUp(final Collection<String> bucketNames, final boolean waitUntilReady, final long timeout) throws TimeoutException {
+
+        final long deadline = System.currentTimeMillis() + timeout;
+
+        for (final String bucketName : bucketNames) {
+            final Bucket bucket = getBucket(bucketName);
+
+            if (waitUntilReady) {
+                waitUntilReady(bucket, deadline);
+            }
+        }
+    }
+
+    private void waitUntilReady(final Bucket bucket, final long deadline) throws TimeoutException {
+
+        while (true) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new TimeoutException(String.format("Key/value endpoints of bucket '%s' are not ready.", bucket.name()));
+            }
+
+            final PingReport report = bucket.ping(Collections.singletonList(ServiceType.BINARY), remaining, TimeUnit.MILLISECONDS);
+
+            if (!report.services().isEmpty()
+                    && report.services().stream().allMatch(service -> service.state() == PingServiceHealth.PingState.OK)) {
+                return;
+            }
+
+            LOG.debug("Waiting for key/value endpoints of bucket '{}'", bucket.name());
+
+            // Caller explicitly asked to wait, back off shortly before the next ping
+            try {
+                Thread.sleep(Math.min(100L, Math.max(1L, deadline - System.currentTimeMillis())));
+
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new TimeoutException(String.format("Interrupted while waiting for bucket '%s'.", bucket.name()));
+            }
+        }
+    }
+
+    public long getBucketCacheHits() {
+        return bucketCacheHits.sum();
+    }
+
+    public long getBucketCacheMisses() {
+        return bucketCacheMisses.sum();
     }
 
     public void getReport(final MemTreeBuilder builder) {
@@ -101,11 +355,15 @@ public class CouchbaseClusterConnection {
         builder.startElement("", "connection", "connection", null);
 
         builder.startElement("", "id", "id", null);
-        builder.characters(getConnectionId().toString());
+        builder.characters(getConnectionId());
         builder.endElement();
 
         builder.startElement("", "username", "username", null);
-        builder.characters(getUsername());
+        builder.characters(getUsername() == null ? "" : getUsername());
+        builder.endElement();
+
+        builder.startElement("", "pinned", "pinned", null);
+        builder.characters(Boolean.toString(pinned));
         builder.endElement();
 
         builder.startElement("", "has-bucket-password", "has-bucket-password", null);
@@ -116,10 +374,57 @@ public class CouchbaseClusterConnection {
         builder.characters(getConnectionString());
         builder.endElement();
 
+        builder.startElement("", "environment", "environment", null);
+        builder.characters(getEnvironmentName());
+        builder.endElement();
+
+        builder.startElement("", "cluster-references", "cluster-references", null);
+        builder.characters(Integer.toString(sharedCluster.getReferences()));
+        builder.endElement();
+
         builder.startElement("", "created", "created", null);
         builder.characters(DateFormatUtils.ISO_8601_EXTENDED_DATETIME_TIME_ZONE_FORMAT.format(creation));
         builder.endElement();
 
+        builder.startElement("", "last-used", "last-used", null);
+        builder.characters(DateFormatUtils.ISO_8601_EXTENDED_DATETIME_TIME_ZONE_FORMAT.format(lastUsed));
+        builder.endElement();
+
+        builder.startElement("", "bucket-cache", "bucket-cache", null);
+
+        builder.startElement("", "hits", "hits", null);
+        builder.characters(Long.toString(getBucketCacheHits()));
+        builder.endElement();
+
+        builder.startElement("", "misses", "misses", null);
+        builder.characters(Long.toString(getBucketCacheMisses()));
+        builder.endElement();
+
+        sharedCluster.getOpenBuckets().forEach((bucket) -> {
+            builder.startElement("", "bucket", "bucket", null);
+            builder.characters(bucket.name());
+            builder.endElement();
+        });
+
+        builder.endElement();
+
+        if (nearCache != null) {
+            nearCache.getReport(builder);
+        }
+
+        if (negativeCache != null) {
+            negativeCache.getReport(builder);
+        }
+
+        getCoalescer.getReport(builder);
+
+        final WriteBehindBuffer buffer = writeBehindBuffer;
+        if (buffer != null) {
+            buffer.getReport(builder);
+        }
+
+        statistics.getReport(builder);
+
         builder.endElement();
     }
 
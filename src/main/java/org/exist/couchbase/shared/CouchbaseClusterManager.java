@@ -20,15 +20,17 @@
 package org.exist.couchbase.shared;
 
 import com.couchbase.client.java.CouchbaseCluster;
-import com.couchbase.client.java.env.CouchbaseEnvironment;
-import com.couchbase.client.java.env.DefaultCouchbaseEnvironment;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.exist.dom.memtree.MemTreeBuilder;
 import org.exist.xquery.XPathException;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 
 import static org.exist.couchbase.xquery.CouchbaseModule.COBA0001;
+import static org.exist.couchbase.xquery.CouchbaseModule.COBA0004;
 
 /**
  * Class for managing CouchbaseCluster objects
@@ -40,55 +42,309 @@ public class CouchbaseClusterManager {
     protected final static Logger LOG = LogManager.getLogger(CouchbaseClusterManager.class);
 
     /**
-     * Singleton
+     * Needed for optimizing connections: environments, keyed by profile name. A profile named after
+     * its settings is removed and its environment shut down when its last shared cluster is released.
      */
-    private static CouchbaseClusterManager instance = null;
+    private final ConcurrentMap<String, EnvironmentProfile> environmentProfiles = new ConcurrentHashMap<>();
 
     /**
-     * Needed for optimizing connections
+     * Clusters shared by connections, keyed by environment, connection string and credentials
      */
-    private static CouchbaseEnvironment cbEnvironment = null;
+    private final ConcurrentMap<String, SharedCluster> sharedClusters = new ConcurrentHashMap<>();
 
     /**
      * Storage of connections
      */
-    private final Map<String, CouchbaseClusterConnection> clusterConnections = new HashMap<>();
+    private final ConcurrentMap<String, CouchbaseClusterConnection> clusterConnections = new ConcurrentHashMap<>();
+
+    /**
+     * Connections idle for longer than this period (milliseconds) are closed, 0 is disabled.
+     */
+    private volatile long idleTimeout = 0L;
+
+    /**
+     * Maximum number of connections, the least recently used connection is closed when exceeded. 0 is unlimited.
+     */
+    private volatile int maxConnections = 0;
+
+    private final LongAdder idleEvictions = new LongAdder();
+    private final LongAdder lruEvictions = new LongAdder();
+
+    private ScheduledExecutorService reaper = null;
+
+    private ExecutorService warmUpExecutor = null;
+
+    /**
+     * Maximum time (milliseconds) a named connection waits in the background for its buckets.
+     */
+    private static final long WARM_UP_TIMEOUT = 60000L;
+
+    /**
+     * Maximum time (milliseconds) a closed connection waits for its deferred upserts.
+     */
+    private static final long CLOSE_TIMEOUT = 30000L;
+
+    /**
+     * Brute force protection: 10 invalid IDs in a burst, then one per second.
+     */
+    private final AttemptThrottle throttle = new AttemptThrottle(10, 1, TimeUnit.SECONDS);
+
+    private CouchbaseClusterManager() {
+        // Singleton
+    }
+
+    /**
+     * Lazily initialized singleton, the JVM guarantees thread safe initialization without locking.
+     */
+    private static class Holder {
+        private static final CouchbaseClusterManager INSTANCE = new CouchbaseClusterManager();
+    }
 
     /**
      * Get instance of object, initialize when needed.
      *
      * @return Instance of class.
      */
-    public static synchronized CouchbaseClusterManager getInstance() {
-        if (instance == null) {
-            instance = new CouchbaseClusterManager();
-            cbEnvironment = DefaultCouchbaseEnvironment.builder()
-                    .connectTimeout(DefaultCouchbaseEnvironment.MAX_REQUEST_LIFETIME)
-                    .kvTimeout(DefaultCouchbaseEnvironment.MAX_REQUEST_LIFETIME)
-                    .build(); // Hardcode timeout
+    public static CouchbaseClusterManager getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Get the registered profile with the name of the provided profile, register when needed.
+     * The number of clusters using the profile is increased.
+     *
+     * @param profile The requested profile
+     * @return The registered profile
+     */
+    private EnvironmentProfile retainEnvironmentProfile(final EnvironmentProfile profile) {
+        final EnvironmentProfile registered = environmentProfiles.compute(profile.getName(), (k, existing) -> {
+            final EnvironmentProfile retained = (existing == null) ? profile : existing;
+            retained.retain();
+            return retained;
+        });
+
+        if (registered != profile && !profile.getSettings().isEmpty()
+                && !registered.getSettings().equals(profile.getSettings())) {
+            LOG.warn("Environment '{}' already exists with settings {}, ignoring settings {}",
+                    registered.getName(), registered.getSettings(), profile.getSettings());
+        }
+
+        return registered;
+    }
+
+    /**
+     * Decrease the number of clusters using the profile, shutdown the environment when no clusters are left.
+     * Environments of named profiles, e.g. the default profile, are kept until {@link #shutdownAll()}.
+     */
+    private void releaseEnvironmentProfile(final EnvironmentProfile profile) {
+        final boolean[] isLast = {false};
+
+        environmentProfiles.computeIfPresent(profile.getName(), (k, existing) -> {
+            if (existing != profile || existing.release() > 0 || existing.isNamed()) {
+                return existing;
+            }
+            isLast[0] = true;
+            return null;
+        });
+
+        if (isLast[0]) {
+            profile.shutdown();
         }
-        return instance;
+    }
+
+    /**
+     * Get the names of the environment profiles in use.
+     *
+     * @return Names of the profiles
+     */
+    public Set<String> listEnvironments() {
+        return environmentProfiles.keySet();
+    }
+
+    /**
+     * Configure the eviction of connections.
+     *
+     * @param idleTimeout    Connections idle longer than this period (milliseconds) are closed, 0 to disable.
+     * @param maxConnections Maximum number of connections, 0 for unlimited.
+     */
+    public void configureEviction(final long idleTimeout, final int maxConnections) {
+        if (idleTimeout < 0 || maxConnections < 0) {
+            throw new IllegalArgumentException(String.format("Invalid eviction settings: idle timeout %s, max connections %s", idleTimeout, maxConnections));
+        }
+
+        this.idleTimeout = idleTimeout;
+        this.maxConnections = maxConnections;
+
+        if (idleTimeout > 0) {
+            startReaper();
+        }
+
+        evictLeastRecentlyUsed(null);
+    }
+
+    /**
+     * Start the background reaper, only once.
+     */
+    private synchronized void startReaper() {
+        if (reaper != null) {
+            return;
+        }
+
+        reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "couchbase-connection-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Check every second, cheap when there is nothing to evict.
+        reaper.scheduleWithFixedDelay(() -> {
+            try {
+                evictIdle();
+            } catch (final Throwable ex) {
+                LOG.error(ex.getMessage(), ex);
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Start the background warm-up thread, only once.
+     */
+    private synchronized ExecutorService getWarmUpExecutor() {
+        if (warmUpExecutor == null) {
+            warmUpExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "couchbase-connection-warmup");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return warmUpExecutor;
+    }
+
+    /**
+     * Close all connections that have not been used within the idle timeout.
+     */
+    private void evictIdle() {
+        final long timeout = idleTimeout;
+        if (timeout <= 0) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        clusterConnections.forEach((id, connection) -> {
+            if (!connection.isPinned() && now - connection.getLastUsed() > timeout && evict(id, connection)) {
+                idleEvictions.increment();
+                LOG.info("Closed connection '{}', idle for more than {} ms.", id, timeout);
+            }
+        });
+    }
+
+    /**
+     * Close least recently used connections while the maximum number of connections is exceeded.
+     *
+     * @param excludedId Connection that shall not be evicted, can be NULL
+     */
+    private void evictLeastRecentlyUsed(final String excludedId) {
+        final int max = maxConnections;
+        if (max <= 0) {
+            return;
+        }
+
+        while (clusterConnections.size() > max) {
+            Map.Entry<String, CouchbaseClusterConnection> lru = null;
+            for (final Map.Entry<String, CouchbaseClusterConnection> entry : clusterConnections.entrySet()) {
+                if (!entry.getKey().equals(excludedId) && !entry.getValue().isPinned()
+                        && (lru == null || entry.getValue().getLastUsed() < lru.getValue().getLastUsed())) {
+                    lru = entry;
+                }
+            }
+
+            if (lru == null) {
+                return;
+            }
+
+            if (evict(lru.getKey(), lru.getValue())) {
+                lruEvictions.increment();
+                LOG.info("Closed least recently used connection '{}', maximum of {} connections exceeded.", lru.getKey(), max);
+            }
+        }
+    }
+
+    /**
+     * Remove and close the connection, unless it has been removed or replaced concurrently.
+     */
+    private boolean evict(final String clusterConnectionId, final CouchbaseClusterConnection connection) {
+        if (!clusterConnections.remove(clusterConnectionId, connection)) {
+            return false;
+        }
+        connection.close(CLOSE_TIMEOUT);
+        release(connection.getSharedCluster());
+        return true;
     }
 
     private void add(final String clusterConnectionId, final CouchbaseClusterConnection connection) {
         clusterConnections.put(clusterConnectionId, connection);
+        evictLeastRecentlyUsed(clusterConnectionId);
     }
 
     public void remove(final String clusterConnectionId) {
 
-        // Close connection
-        final CouchbaseCluster c = get(clusterConnectionId);
+        // Unregister, only one thread can remove a connection
+        final CouchbaseClusterConnection c = (clusterConnectionId == null) ? null : clusterConnections.remove(clusterConnectionId);
 
         // If no connectionID is available, silently ignore
         if (c == null) {
-            LOG.debug("clusterConnectionId does not exist, ignoring.", clusterConnectionId);
+            LOG.debug("clusterConnectionId '{}' does not exist, ignoring.", clusterConnectionId);
             return;
         }
 
-        c.disconnect();
+        // Write deferred upserts, close buckets and disconnect when this was the last reference
+        c.close(CLOSE_TIMEOUT);
+        release(c.getSharedCluster());
+    }
 
-        // Remove
-        clusterConnections.remove(clusterConnectionId);
+    /**
+     * Get a shared cluster, create when needed. The reference count is increased. A new cluster
+     * uses the registered environment profile, reused when the profile already exists.
+     */
+    private SharedCluster acquire(final EnvironmentProfile profile, final String connectionString, final String bucketPassword) {
+        final String key = SharedCluster.createKey(profile.getName(), connectionString, bucketPassword);
+
+        return sharedClusters.compute(key, (k, existing) -> {
+            if (existing == null) {
+                final EnvironmentProfile registered = retainEnvironmentProfile(profile);
+                try {
+                    // Create new cb cluster with the connection string.
+                    return new SharedCluster(k, CouchbaseCluster.fromConnectionString(registered.getEnvironment(), connectionString),
+                            bucketPassword, registered);
+
+                } catch (final RuntimeException ex) {
+                    releaseEnvironmentProfile(registered);
+                    throw ex;
+                }
+            }
+            existing.retain();
+            return existing;
+        });
+    }
+
+    /**
+     * Decrease the reference count of the shared cluster, close it when no references are left.
+     */
+    private void release(final SharedCluster sharedCluster) {
+        final boolean[] isLast = {false};
+
+        sharedClusters.computeIfPresent(sharedCluster.getKey(), (k, existing) -> {
+            if (existing != sharedCluster || existing.release() > 0) {
+                return existing;
+            }
+            isLast[0] = true;
+            return null;
+        });
+
+        if (isLast[0]) {
+            sharedCluster.close();
+            releaseEnvironmentProfile(sharedCluster.getProfile());
+        }
     }
 
     public Set<String> list() {
@@ -102,6 +358,10 @@ public class CouchbaseClusterManager {
      * @return Cluster reference.
      */
     public CouchbaseCluster get(final String clusterConnectionId) {
+        if (clusterConnectionId == null) {
+            return null;
+        }
+
         final CouchbaseClusterConnection couchbaseClusterConnection = clusterConnections.get(clusterConnectionId);
 
         if (couchbaseClusterConnection == null) {
@@ -112,7 +372,7 @@ public class CouchbaseClusterManager {
     }
 
     public String getBucketPassword(final String clusterConnectionId) {
-        final CouchbaseClusterConnection ccc = clusterConnections.get(clusterConnectionId);
+        final CouchbaseClusterConnection ccc = (clusterConnectionId == null) ? null : clusterConnections.get(clusterConnectionId);
         if (ccc == null) {
             LOG.debug(String.format("No bucket password for '%s'", clusterConnectionId));
             return null;
@@ -133,40 +393,113 @@ public class CouchbaseClusterManager {
     }
 
     public String create(final String connectionString, final String username, final String defaultBucketPassword) {
+        return create(connectionString, username, defaultBucketPassword, EnvironmentProfile.getDefault());
+    }
+
+    public String create(final String connectionString, final String username, final String defaultBucketPassword, final EnvironmentProfile profile) {
+        return create(connectionString, username, defaultBucketPassword, profile, null, null);
+    }
+
+    public String create(final String connectionString, final String username, final String defaultBucketPassword,
+                         final EnvironmentProfile profile, final NearCache nearCache, final NegativeCache negativeCache) {
 
-        // Create new cb cluster with the connection string.
-        final CouchbaseCluster cluster = CouchbaseCluster.fromConnectionString(cbEnvironment, connectionString);
+        // Get the cluster, share when an identical cluster is already open
+        final SharedCluster sharedCluster = acquire(profile, connectionString, defaultBucketPassword);
 
         // Create random identifier
-        final UUID clusterConnectionId = UUID.randomUUID();
+        final String clusterConnectionId = UUID.randomUUID().toString();
 
         // Register the cluster
-        final CouchbaseClusterConnection ccc = new CouchbaseClusterConnection(cluster, username, defaultBucketPassword, connectionString, clusterConnectionId);
-        add(clusterConnectionId.toString(), ccc);
+        final CouchbaseClusterConnection ccc = new CouchbaseClusterConnection(sharedCluster, username, defaultBucketPassword, connectionString, clusterConnectionId, profile.getName(), false, nearCache, negativeCache);
+        add(clusterConnectionId, ccc);
 
-        LOG.info(String.format("%s - %s", clusterConnectionId, cluster.toString()));
+        LOG.info(String.format("%s - %s", clusterConnectionId, sharedCluster.getCluster().toString()));
 
-        return clusterConnectionId.toString();
+        return clusterConnectionId;
     }
 
-    public CouchbaseCluster validate(final String clusterConnectionId) throws XPathException {
-        if (clusterConnectionId == null || !isValid(clusterConnectionId)) {
-            try {
-                // introduce a delay
-                Thread.sleep(1000L);
+    /**
+     * Register a named connection as declared in conf.xml. The name is the clusterId used in
+     * XQueries. The connection is never evicted, its buckets are opened in the background.
+     * Registering an existing name has no effect, the module is instantiated many times.
+     *
+     * @param name                  Name of the connection, used as clusterId
+     * @param connectionString      The connection string
+     * @param defaultBucketPassword The bucket password, can be NULL
+     * @param profile               The environment profile
+     * @param bucketNames           Buckets to open in the background
+     * @return TRUE when the connection has been registered, FALSE when the name already exists.
+     */
+    public boolean register(final String name, final String connectionString, final String defaultBucketPassword,
+                            final EnvironmentProfile profile, final Collection<String> bucketNames) {
+
+        // Fast path, already registered by a previous instance of the module
+        if (clusterConnections.containsKey(name)) {
+            return false;
+        }
+
+        final SharedCluster sharedCluster = acquire(profile, connectionString, defaultBucketPassword);
+
+        final CouchbaseClusterConnection ccc = new CouchbaseClusterConnection(sharedCluster, null, defaultBucketPassword, connectionString, name, profile.getName(), true, null, null);
+        if (clusterConnections.putIfAbsent(name, ccc) != null) {
+            // Registered concurrently
+            release(sharedCluster);
+            return false;
+        }
+
+        LOG.info(String.format("%s - %s", name, sharedCluster.getCluster().toString()));
+
+        if (!bucketNames.isEmpty()) {
+            getWarmUpExecutor().execute(() -> {
+                try {
+                    ccc.warmUp(bucketNames, true, WARM_UP_TIMEOUT);
+                    LOG.info("Connection '{}' is ready, opened buckets {}", name, bucketNames);
 
-            } catch (final InterruptedException ex) {
-                LOG.error(ex);
+                } catch (final Throwable ex) {
+                    LOG.error(String.format("Unable to open buckets %s of connection '%s': %s", bucketNames, name, ex.getMessage()));
+                }
+            });
+        }
+
+        return true;
+    }
+
+    public CouchbaseCluster validate(final String clusterConnectionId, final String subject) throws XPathException {
+        return validateConnection(clusterConnectionId, subject).getCluster();
+    }
+
+    /**
+     * Get the cluster connection, throw exception when the connection does not exist. Subjects
+     * that repeatedly provide invalid IDs are refused for a while, without blocking the caller.
+     * A refused subject is refused for valid IDs as well, so guessing does not pay off.
+     *
+     * @param clusterConnectionId ID of connection
+     * @param subject             Name of the user requesting the connection
+     * @return The cluster connection
+     * @throws XPathException The clusterConnectionId is not valid, or too many invalid IDs have been provided.
+     */
+    public CouchbaseClusterConnection validateConnection(final String clusterConnectionId, final String subject) throws XPathException {
+
+        if (throttle.isExhausted(subject)) {
+            throw new XPathException(COBA0004, String.format("Too many invalid clusterConnectionIds provided by '%s', try again later.", subject));
+        }
+
+        final CouchbaseClusterConnection connection = (clusterConnectionId == null) ? null : clusterConnections.get(clusterConnectionId);
+        if (connection == null) {
+            if (!throttle.registerFailure(subject)) {
+                throw new XPathException(COBA0004, String.format("Too many invalid clusterConnectionIds provided by '%s', try again later.", subject));
             }
             throw new XPathException(COBA0001, "The provided Couchbase clusterConnectionId is not valid.");
         }
 
-        return clusterConnections.get(clusterConnectionId).getCluster();
+        connection.touch();
+
+        return connection;
 
     }
 
     /**
-     * Disconnect all cluster connections and shutdown the environment.
+     * Disconnect all cluster connections and shutdown the environments.
      *
      * @return List of connections that have been shutdown.
      */
@@ -177,7 +510,7 @@ public class CouchbaseClusterManager {
         // Stopping clusterConnections
         clusterConnections.values().forEach((connection) -> {
             try {
-                final String id = connection.getConnectionId().toString();
+                final String id = connection.getConnectionId();
                 remove(id);
                 ids.add(id);
 
@@ -186,10 +519,49 @@ public class CouchbaseClusterManager {
             }
         });
 
-        // Shut it down, all
-        cbEnvironment.shutdown();
+        // Shut down environments that are still registered. New environments are created on the next connect.
+        environmentProfiles.values().forEach((profile) -> {
+            try {
+                profile.shutdown();
+
+            } catch (final Throwable ex) {
+                LOG.error(ex.getMessage());
+            }
+        });
+        environmentProfiles.clear();
 
         return ids;
     }
 
+    public void getReport(final MemTreeBuilder builder) {
+
+        builder.startElement("", "evictions", "evictions", null);
+
+        builder.startElement("", "idle-timeout", "idle-timeout", null);
+        builder.characters(Long.toString(idleTimeout));
+        builder.endElement();
+
+        builder.startElement("", "max-connections", "max-connections", null);
+        builder.characters(Integer.toString(maxConnections));
+        builder.endElement();
+
+        builder.startElement("", "idle", "idle", null);
+        builder.characters(Long.toString(idleEvictions.sum()));
+        builder.endElement();
+
+        builder.startElement("", "lru", "lru", null);
+        builder.characters(Long.toString(lruEvictions.sum()));
+        builder.endElement();
+
+        builder.endElement();
+
+        builder.startElement("", "environments", "environments", null);
+        new TreeSet<>(listEnvironments()).forEach((name) -> {
+            builder.startElement("", "environment", "environment", null);
+            builder.characters(name);
+            builder.endElement();
+        });
+        builder.endElement();
+    }
+
 }
@@ -0,0 +1,226 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.shared;
+
+import com.couchbase.client.core.env.KeyValueServiceConfig;
+import com.couchbase.client.core.env.QueryServiceConfig;
+import com.couchbase.client.java.env.CouchbaseEnvironment;
+import com.couchbase.client.java.env.DefaultCouchbaseEnvironment;
+
+import java.util.*;
+
+/**
+ * Named set of CouchbaseEnvironment settings. Connections that use the same profile
+ * share one environment (thread pools, endpoints and timeouts).
+ *
+ * @author Dannes Wessels
+ */
+public class EnvironmentProfile {
+
+    public static final String DEFAULT = "default";
+
+    /*
+     * Option keys
+     */
+    public static final String ENVIRONMENT = "environment";
+    public static final String CONNECT_TIMEOUT = "connectTimeout";
+    public static final String KV_TIMEOUT = "kvTimeout";
+    public static final String IO_POOL_SIZE = "ioPoolSize";
+    public static final String COMPUTATION_POOL_SIZE = "computationPoolSize";
+    public static final String KV_ENDPOINTS = "kvEndpoints";
+    public static final String QUERY_ENDPOINTS = "queryEndpoints";
+    public static final String MUTATION_TOKENS_ENABLED = "mutationTokensEnabled";
+
+    /**
+     * All keys recognized by the profile, including the profile name.
+     */
+    public static final Set<String> KEYS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            ENVIRONMENT, CONNECT_TIMEOUT, KV_TIMEOUT, IO_POOL_SIZE, COMPUTATION_POOL_SIZE, KV_ENDPOINTS, QUERY_ENDPOINTS,
+            MUTATION_TOKENS_ENABLED)));
+
+    private static final List<String> SETTINGS = Arrays.asList(
+            CONNECT_TIMEOUT, KV_TIMEOUT, IO_POOL_SIZE, COMPUTATION_POOL_SIZE, KV_ENDPOINTS, QUERY_ENDPOINTS);
+
+    private final String name;
+
+    /**
+     * Settings, sorted by key. Boolean settings are stored as 1 when enabled.
+     */
+    private final SortedMap<String, Long> settings;
+
+    /**
+     * Named profiles, including the default profile, keep their environment until the
+     * manager is shut down. Profiles named after their settings are shut down when unused.
+     */
+    private final boolean named;
+
+    private volatile CouchbaseEnvironment environment = null;
+
+    /**
+     * Number of shared clusters using the profile, only modified within the atomic
+     * operations of the manager's map
+     */
+    private volatile int clusters = 0;
+
+    private EnvironmentProfile(final String name, final SortedMap<String, Long> settings, final boolean named) {
+        this.name = name;
+        this.settings = settings;
+        this.named = named;
+    }
+
+    /**
+     * Create profile from options. When no name is provided, the profile is named after its settings
+     * so that connections with identical settings share the environment.
+     *
+     * @param options The connection options
+     * @return The profile
+     * @throws IllegalArgumentException An option has an invalid value.
+     */
+    public static EnvironmentProfile from(final Map<String, Object> options) throws IllegalArgumentException {
+
+        final SortedMap<String, Long> settings = new TreeMap<>();
+        for (final String key : SETTINGS) {
+            final Object value = options.get(key);
+            if (value != null) {
+                final long setting = ConversionTools.getLongValue(key, value, 0);
+                if (setting <= 0) {
+                    throw new IllegalArgumentException(String.format("Map item '%s' must be a positive value (%s)", key, value));
+                }
+                settings.put(key, setting);
+            }
+        }
+
+        if (ConversionTools.getBooleanValue(MUTATION_TOKENS_ENABLED, options.get(MUTATION_TOKENS_ENABLED), false)) {
+            settings.put(MUTATION_TOKENS_ENABLED, 1L);
+        }
+
+        if (options.get(ENVIRONMENT) != null) {
+            return new EnvironmentProfile(ConversionTools.getStringValue(ENVIRONMENT, options.get(ENVIRONMENT), DEFAULT), settings, true);
+        }
+
+        return settings.isEmpty() ? getDefault() : new EnvironmentProfile(settings.toString(), settings, false);
+    }
+
+    /**
+     * Get the default profile.
+     *
+     * @return The default profile
+     */
+    public static EnvironmentProfile getDefault() {
+        return new EnvironmentProfile(DEFAULT, new TreeMap<>(), true);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public SortedMap<String, Long> getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return TRUE when the environment is kept until the manager is shut down.
+     */
+    public boolean isNamed() {
+        return named;
+    }
+
+    int retain() {
+        return ++clusters;
+    }
+
+    int release() {
+        return --clusters;
+    }
+
+    /**
+     * Get the environment of this profile, create when needed.
+     *
+     * @return The environment
+     */
+    public CouchbaseEnvironment getEnvironment() {
+        CouchbaseEnvironment env = environment;
+        if (env == null) {
+            synchronized (this) {
+                env = environment;
+                if (env == null) {
+                    env = createEnvironment();
+                    environment = env;
+                }
+            }
+        }
+        return env;
+    }
+
+    /**
+     * Shutdown the environment, when it has been created.
+     */
+    public void shutdown() {
+        final CouchbaseEnvironment env;
+        synchronized (this) {
+            env = environment;
+            environment = null;
+        }
+        if (env != null) {
+            env.shutdown();
+        }
+    }
+
+    private CouchbaseEnvironment createEnvironment() {
+
+        // Default timeouts are hardcoded, can be overruled per profile
+        final DefaultCouchbaseEnvironment.Builder builder = DefaultCouchbaseEnvironment.builder()
+                .connectTimeout(getSetting(CONNECT_TIMEOUT, DefaultCouchbaseEnvironment.MAX_REQUEST_LIFETIME))
+                .kvTimeout(getSetting(KV_TIMEOUT, DefaultCouchbaseEnvironment.MAX_REQUEST_LIFETIME));
+
+        if (settings.containsKey(IO_POOL_SIZE)) {
+            builder.ioPoolSize(settings.get(IO_POOL_SIZE).intValue());
+        }
+
+        if (settings.containsKey(COMPUTATION_POOL_SIZE)) {
+            builder.computationPoolSize(settings.get(COMPUTATION_POOL_SIZE).intValue());
+        }
+
+        if (settings.containsKey(KV_ENDPOINTS)) {
+            builder.kvServiceConfig(KeyValueServiceConfig.create(settings.get(KV_ENDPOINTS).intValue()));
+        }
+
+        if (settings.containsKey(QUERY_ENDPOINTS)) {
+            final int endpoints = settings.get(QUERY_ENDPOINTS).intValue();
+            builder.queryServiceConfig(QueryServiceConfig.create(endpoints, endpoints));
+        }
+
+        if (settings.containsKey(MUTATION_TOKENS_ENABLED)) {
+            builder.mutationTokensEnabled(true);
+        }
+
+        return builder.build();
+    }
+
+    private long getSetting(final String key, final long defaultValue) {
+        final Long value = settings.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    @Override
+    public String toString() {
+        return name + settings;
+    }
+}
@@ -26,6 +26,7 @@ import com.couchbase.client.java.error.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.couchbase.xquery.CouchbaseModule;
+import org.exist.xquery.ErrorCodes.ErrorCode;
 import org.exist.xquery.Expression;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.util.ExpressionDumper;
@@ -52,7 +53,9 @@ public class GenericExceptionHandler {
      * @return Nothing, there will always be an exception thrown.
      * @throws XPathException The translated eXistdb exception
      */
-    public static Sequence handleException(final Expression expr, final Throwable throwable) throws XPathException {
+    public static Sequence handleException(final Expression expr, final Throwable thrown) throws XPathException {
+
+        final Throwable throwable = unwrap(thrown);
 
         if (LOG.isDebugEnabled()) {
             LOG.error("Expression='{}' Source={}#{}", ExpressionDumper.dump(expr), expr.getSource(), expr.getLine(), throwable);
@@ -62,80 +65,141 @@ public class GenericExceptionHandler {
 
         if (throwable instanceof XPathException) {
             throw (XPathException) throwable;
+        }
 
-        } else if (throwable instanceof IllegalArgumentException) {
+        final ErrorCode errorCode = getErrorCode(throwable);
 
-            throw new XPathException(expr, CouchbaseModule.COBA0002, throwable.getMessage());
+        if (errorCode == CouchbaseModule.COBA0010) {
 
-        } else if (throwable instanceof TimeoutException) {
+            throw new XPathException(expr, errorCode, throwable);
 
-            throw new XPathException(expr, CouchbaseModule.COBA0011, throwable.getMessage());
+        } else if (errorCode == CouchbaseModule.COBA0000) {
 
-        } else if (throwable instanceof BackpressureException) {
+            if (!LOG.isDebugEnabled()) {
+                LOG.error("Generic issue", throwable);
+            }
 
-            throw new XPathException(expr, CouchbaseModule.COBA0012, throwable.getMessage());
+            throw new XPathException(expr, errorCode, throwable);
 
-        } else if (throwable instanceof RequestCancelledException) {
+        } else {
 
-            throw new XPathException(expr, CouchbaseModule.COBA0013, throwable.getMessage());
+            throw new XPathException(expr, errorCode, throwable.getMessage());
+        }
 
-        } else if (throwable instanceof TemporaryFailureException) {
+    }
 
-            throw new XPathException(expr, CouchbaseModule.COBA0014, throwable.getMessage());
+    /**
+     * Process the exception thrown by the Couchbase driver, and count the error for the connection.
+     *
+     * @param expr       The current xpath expression
+     * @param throwable  The Exception
+     * @param connection The connection the exception occurred for.
+     * @return Nothing, there will always be an exception thrown.
+     * @throws XPathException The translated eXistdb exception
+     */
+    public static Sequence handleException(final Expression expr, final Throwable throwable, final CouchbaseClusterConnection connection) throws XPathException {
+        try {
+            return handleException(expr, throwable);
 
-        } else if (throwable instanceof CouchbaseOutOfMemoryException) {
+        } catch (final XPathException ex) {
+            if (connection != null && ex.getErrorCode() != null) {
+                connection.getStatistics().increaseErrors(ex.getErrorCode().getErrorQName().getLocalPart());
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Check if a failed write may nevertheless have been applied by the server, e.g. when the
+     * request timed out or was cancelled while on the wire.
+     *
+     * @param throwable The Exception
+     * @return TRUE when the outcome of the write is unknown.
+     */
+    public static boolean isAmbiguous(final Throwable throwable) {
+        final ErrorCode errorCode = getErrorCode(throwable);
+        return errorCode == CouchbaseModule.COBA0011 || errorCode == CouchbaseModule.COBA0013;
+    }
 
-            throw new XPathException(expr, CouchbaseModule.COBA0015, throwable.getMessage());
+    /**
+     * Get the checked exception that is wrapped by a blocking observable, e.g. the
+     * TimeoutException of the timeout() operator.
+     */
+    private static Throwable unwrap(final Throwable throwable) {
+        if (throwable.getClass() == RuntimeException.class && throwable.getCause() instanceof Exception
+                && !(throwable.getCause() instanceof RuntimeException)) {
+            return throwable.getCause();
+        }
+        return throwable;
+    }
 
-        } else if (throwable instanceof ViewDoesNotExistException) {
+    /**
+     * Translate the exception thrown by the Couchbase driver into an error code.
+     *
+     * @param throwable The Exception
+     * @return The matching COBA error code.
+     */
+    public static ErrorCode getErrorCode(final Throwable thrown) {
 
-            throw new XPathException(expr, CouchbaseModule.COBA0016, throwable.getMessage());
+        final Throwable throwable = unwrap(thrown);
 
-        } else if (throwable instanceof DocumentAlreadyExistsException) {
+        if (throwable instanceof XPathException && ((XPathException) throwable).getErrorCode() != null) {
+            return ((XPathException) throwable).getErrorCode();
 
-            throw new XPathException(expr, CouchbaseModule.COBA0017, throwable.getMessage() /*, throwable */);
+        } else if (throwable instanceof IllegalArgumentException) {
+            return CouchbaseModule.COBA0002;
 
-        } else if (throwable instanceof DocumentDoesNotExistException) {
+        } else if (throwable instanceof TimeoutException) {
+            return CouchbaseModule.COBA0011;
 
-            throw new XPathException(expr, CouchbaseModule.COBA0018, throwable.getMessage());
+        } else if (throwable instanceof BackpressureException) {
+            return CouchbaseModule.COBA0012;
 
-        } else if (throwable instanceof RequestTooBigException) {
+        } else if (throwable instanceof RequestCancelledException) {
+            return CouchbaseModule.COBA0013;
 
-            throw new XPathException(expr, CouchbaseModule.COBA0019, throwable.getMessage());
+        } else if (throwable instanceof TemporaryFailureException) {
+            return CouchbaseModule.COBA0014;
 
-        } else if (throwable instanceof TranscodingException) {
+        } else if (throwable instanceof CouchbaseOutOfMemoryException) {
+            return CouchbaseModule.COBA0015;
+
+        } else if (throwable instanceof ViewDoesNotExistException) {
+            return CouchbaseModule.COBA0016;
 
-            throw new XPathException(expr, CouchbaseModule.COBA0020, throwable.getMessage());
+        } else if (throwable instanceof DocumentAlreadyExistsException) {
+            return CouchbaseModule.COBA0017;
+
+        } else if (throwable instanceof DocumentDoesNotExistException) {
+            return CouchbaseModule.COBA0018;
+
+        } else if (throwable instanceof RequestTooBigException) {
+            return CouchbaseModule.COBA0019;
+
+        } else if (throwable instanceof TranscodingException) {
+            return CouchbaseModule.COBA0020;
 
         } else if (throwable instanceof InvalidPasswordException) {
+            return CouchbaseModule.COBA0021;
 
-            throw new XPathException(expr, CouchbaseModule.COBA0021, throwable.getMessage());
+        } else if (throwable instanceof CASMismatchException) {
+            return CouchbaseModule.COBA0022;
 
         } else if (throwable instanceof DesignDocumentAlreadyExistsException) {
-
-            throw new XPathException(expr, CouchbaseModule.COBA0030, throwable.getMessage());
+            return CouchbaseModule.COBA0030;
 
         } else if (throwable instanceof DesignDocumentDoesNotExistException) {
-
-            throw new XPathException(expr, CouchbaseModule.COBA0032, throwable.getMessage());
+            return CouchbaseModule.COBA0032;
 
         } else if (throwable instanceof DesignDocumentException) {
-
-            throw new XPathException(expr, CouchbaseModule.COBA0031, throwable.getMessage());
+            return CouchbaseModule.COBA0031;
 
         } else if (throwable instanceof CouchbaseException) {
-
-            throw new XPathException(expr, CouchbaseModule.COBA0010, throwable);
+            return CouchbaseModule.COBA0010;
 
         } else {
-
-            if (!LOG.isDebugEnabled()) {
-                LOG.error("Generic issue", throwable);
-            }
-
-            throw new XPathException(expr, CouchbaseModule.COBA0000, throwable);
+            return CouchbaseModule.COBA0000;
         }
-
     }
 
 }
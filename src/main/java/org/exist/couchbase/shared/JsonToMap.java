@@ -19,6 +19,8 @@
  */
 package org.exist.couchbase.shared;
 
+import com.couchbase.client.core.message.kv.MutationToken;
+import com.couchbase.client.java.document.Document;
 import com.couchbase.client.java.document.json.JsonArray;
 import com.couchbase.client.java.document.json.JsonObject;
 import org.exist.xquery.XPathException;
@@ -54,6 +56,54 @@ public class JsonToMap {
         return convertJsonObject(json, context);
     }
 
+    /**
+     * Convert the metadata of a stored document, the content is not converted.
+     *
+     * @param document The document returned by the server
+     * @param context  XQuery context
+     * @return map with 'id', 'cas', 'expiry' and, when enabled in the environment, 'mutation-token'
+     * @throws XPathException The conversion failed.
+     */
+    public static MapType convertMetadata(final Document<?> document, final XQueryContext context) throws XPathException {
+
+        final MapType result = new MapType(context);
+        result.add(new StringValue("id"), new StringValue(document.id()));
+        result.add(new StringValue("cas"), new IntegerValue(document.cas()));
+        result.add(new StringValue("expiry"), new IntegerValue(document.expiry()));
+
+        final MutationToken token = document.mutationToken();
+        if (token != null) {
+            final MapType tokenMap = new MapType(context);
+            tokenMap.add(new StringValue("bucket"), new StringValue(token.bucket()));
+            tokenMap.add(new StringValue("vbucket-id"), new IntegerValue(token.vbucketID()));
+            tokenMap.add(new StringValue("vbucket-uuid"), new IntegerValue(token.vbucketUUID()));
+            tokenMap.add(new StringValue("sequence-number"), new IntegerValue(token.sequenceNumber()));
+            result.add(new StringValue("mutation-token"), tokenMap);
+        }
+
+        return result;
+    }
+
+    /**
+     * Convert a Couchbase JSON value, e.g. the content of a sub-document path, into the eXist-db equivalent.
+     *
+     * @param value   The JSON object, JSON array or simple value
+     * @param context XQuery context
+     * @return eXist-db representation of the value
+     * @throws XPathException The conversion failed.
+     */
+    public static Sequence convertValue(final Object value, final XQueryContext context) throws XPathException {
+
+        if (value instanceof JsonObject) {
+            return convertJsonObject((JsonObject) value, context);
+
+        } else if (value instanceof JsonArray) {
+            return convertJsonArray((JsonArray) value, context);
+        }
+
+        return convertToSequence(value, context);
+    }
+
     /**
      * Convert the Couchbase JSON array into an eXist-db Array type,
      *
@@ -75,6 +75,18 @@ public class MapToJson {
     }
 
 
+    /**
+     * Convert a sequence to a JSON value, e.g. for a sub-document path.
+     *
+     * @param seq The sequence
+     * @return JSON object, JSON array or simple value
+     * @throws XPathException The conversion failed.
+     */
+    public static Object convertValue(final Sequence seq) throws XPathException {
+        return convertSequence(seq);
+    }
+
+
     /*
      *  ArrayType to JSON Array conversion
      */
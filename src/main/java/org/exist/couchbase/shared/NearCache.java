@@ -0,0 +1,317 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.shared;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import org.exist.dom.memtree.MemTreeBuilder;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per connection in-JVM cache of documents retrieved with couchbase:get(). Entries are
+ * bounded by count and by the size of their Json text, and expire after a time to live.
+ * An expired entry is revalidated with its CAS value, so an unchanged document is not
+ * transferred and parsed again. Writes through the same connection remove the entry.
+ *
+ * @author Dannes Wessels
+ */
+public class NearCache {
+
+    /*
+     * Option keys
+     */
+    public static final String MAX_ENTRIES = "nearCacheMaxEntries";
+    public static final String MAX_BYTES = "nearCacheMaxBytes";
+    public static final String TTL = "nearCacheTtl";
+
+    public static final Set<String> KEYS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(MAX_ENTRIES, MAX_BYTES, TTL)));
+
+    private static final long DEFAULT_MAX_ENTRIES = 10000L;
+    private static final long DEFAULT_MAX_BYTES = 16L * 1024L * 1024L;
+    private static final long DEFAULT_TTL = 60000L;
+
+    private final long maxEntries;
+    private final long maxBytes;
+    private final long ttl;
+
+    /**
+     * Entries in access order, the eldest entry is evicted first. Guarded by 'this'.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytes = 0L;
+
+    /**
+     * Write versions, a retrieval that overlaps with a write is not cached.
+     */
+    private final StripedVersions versions = new StripedVersions();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * @param maxEntries Maximum number of documents
+     * @param maxBytes   Maximum total size of the Json text of the documents
+     * @param ttl        Time to live of an entry (milliseconds), revalidated afterwards
+     */
+    public NearCache(final long maxEntries, final long maxBytes, final long ttl) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Create cache from connection options. The cache is opt-in: only when one of the
+     * options is provided a cache is created, missing options get a default value.
+     *
+     * @param options The connection options
+     * @return The cache, NULL when no option is provided.
+     * @throws IllegalArgumentException An option has an invalid value.
+     */
+    public static NearCache from(final Map<String, Object> options) throws IllegalArgumentException {
+
+        if (Collections.disjoint(options.keySet(), KEYS)) {
+            return null;
+        }
+
+        return new NearCache(getPositiveValue(options, MAX_ENTRIES, DEFAULT_MAX_ENTRIES),
+                getPositiveValue(options, MAX_BYTES, DEFAULT_MAX_BYTES),
+                getPositiveValue(options, TTL, DEFAULT_TTL));
+    }
+
+    private static long getPositiveValue(final Map<String, Object> options, final String key, final long defaultValue) {
+        final long value = ConversionTools.getLongValue(key, options.get(key), defaultValue);
+        if (value <= 0) {
+            throw new IllegalArgumentException(String.format("Map item '%s' must be a positive value (%s)", key, value));
+        }
+        return value;
+    }
+
+    private static String createKey(final String bucketName, final String docName) {
+        return bucketName + '\u0000' + docName;
+    }
+
+    /**
+     * Get a cached document.
+     *
+     * @param bucketName Name of the bucket
+     * @param docName    Name of the document
+     * @return The entry, NULL when not cached. The entry can be expired and must be revalidated then.
+     */
+    public Entry get(final String bucketName, final String docName) {
+
+        final Entry entry;
+        synchronized (this) {
+            entry = entries.get(createKey(bucketName, docName));
+        }
+
+        if (entry == null || entry.isExpired()) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+
+        return entry;
+    }
+
+    /**
+     * Get the version to pass to {@link #put(String, String, JsonObject, long, long, long)}, must be
+     * obtained before the document is retrieved.
+     *
+     * @param bucketName Name of the bucket
+     * @param docName    Name of the document
+     * @return The current version
+     */
+    public long getVersion(final String bucketName, final String docName) {
+        return versions.get(createKey(bucketName, docName));
+    }
+
+    /**
+     * Keep an expired entry when the document has not been changed on the server.
+     *
+     * @param bucketName Name of the bucket
+     * @param docName    Name of the document
+     * @param entry      The expired entry
+     * @param cas        Current CAS value of the document
+     * @return TRUE when the entry is valid again, FALSE when the entry has been removed.
+     */
+    public boolean revalidate(final String bucketName, final String docName, final Entry entry, final long cas) {
+
+        if (entry.getCas() != cas) {
+            invalidate(bucketName, docName);
+            return false;
+        }
+
+        entry.expires = System.currentTimeMillis() + ttl;
+        revalidations.increment();
+        return true;
+    }
+
+    /**
+     * Cache a document, the eldest entries are evicted when a bound is exceeded. The document is
+     * not cached when it has been written since the version was obtained.
+     *
+     * @param bucketName Name of the bucket
+     * @param docName    Name of the document
+     * @param content    The document, must not be modified afterwards
+     * @param cas        CAS value of the document
+     * @param size       Size of the Json text of the document
+     * @param version    Version obtained before the document was retrieved
+     */
+    public void put(final String bucketName, final String docName, final JsonObject content, final long cas, final long size,
+                    final long version) {
+
+        // Would evict everything else
+        if (size > maxBytes) {
+            invalidate(bucketName, docName);
+            return;
+        }
+
+        final String key = createKey(bucketName, docName);
+        final Entry entry = new Entry(content, cas, size, System.currentTimeMillis() + ttl);
+
+        synchronized (this) {
+            // A write overlapped with the retrieval
+            if (versions.get(key) != version) {
+                return;
+            }
+
+            final Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                bytes -= previous.size;
+            }
+            bytes += size;
+
+            final Iterator<Entry> iterator = entries.values().iterator();
+            while ((entries.size() > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+                bytes -= iterator.next().size;
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Remove a document, e.g. after it has been written.
+     *
+     * @param bucketName Name of the bucket
+     * @param docName    Name of the document
+     */
+    public void invalidate(final String bucketName, final String docName) {
+        final String key = createKey(bucketName, docName);
+        versions.increment(key);
+
+        synchronized (this) {
+            final Entry previous = entries.remove(key);
+            if (previous == null) {
+                return;
+            }
+            bytes -= previous.size;
+        }
+        invalidations.increment();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public void getReport(final MemTreeBuilder builder) {
+
+        final long hitCount = getHits();
+        final long total = hitCount + getMisses();
+
+        builder.startElement("", "near-cache", "near-cache", null);
+
+        addElement(builder, "max-entries", maxEntries);
+        addElement(builder, "max-bytes", maxBytes);
+        addElement(builder, "ttl", ttl);
+        addElement(builder, "entries", size());
+        addElement(builder, "bytes", getBytes());
+        addElement(builder, "hits", hitCount);
+        addElement(builder, "misses", getMisses());
+
+        builder.startElement("", "hit-ratio", "hit-ratio", null);
+        builder.characters(String.format(Locale.US, "%.3f", total == 0 ? 0d : (double) hitCount / total));
+        builder.endElement();
+
+        addElement(builder, "revalidations", revalidations.sum());
+        addElement(builder, "evictions", getEvictions());
+        addElement(builder, "invalidations", invalidations.sum());
+
+        builder.endElement();
+    }
+
+    private static void addElement(final MemTreeBuilder builder, final String name, final long value) {
+        builder.startElement("", name, name, null);
+        builder.characters(Long.toString(value));
+        builder.endElement();
+    }
+
+    /**
+     * A cached document.
+     */
+    public static final class Entry {
+
+        private final JsonObject content;
+        private final long cas;
+        private final long size;
+
+        private volatile long expires;
+
+        private Entry(final JsonObject content, final long cas, final long size, final long expires) {
+            this.content = content;
+            this.cas = cas;
+            this.size = size;
+            this.expires = expires;
+        }
+
+        public JsonObject getContent() {
+            return content;
+        }
+
+        public long getCas() {
+            return cas;
+        }
+
+        public boolean isExpired() {
+            return System.currentTimeMillis() >= expires;
+        }
+    }
+}
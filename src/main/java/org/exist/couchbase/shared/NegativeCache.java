@@ -0,0 +1,231 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.shared;
+
+import org.exist.dom.memtree.MemTreeBuilder;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per connection cache of documents that were not found by couchbase:get(), so that repeated
+ * retrievals of absent documents are answered locally for a short time. Writes through the
+ * same connection remove the entry.
+ *
+ * @author Dannes Wessels
+ */
+public class NegativeCache {
+
+    /*
+     * Option keys
+     */
+    public static final String TTL = "negativeCacheTtl";
+    public static final String MAX_ENTRIES = "negativeCacheMaxEntries";
+
+    public static final Set<String> KEYS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(TTL, MAX_ENTRIES)));
+
+    private static final long DEFAULT_MAX_ENTRIES = 10000L;
+
+    private final long ttl;
+    private final long maxEntries;
+
+    /**
+     * Expiry time (milliseconds) of the absent documents, in access order. The eldest entry is
+     * evicted first. Guarded by 'this'.
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Write versions, a retrieval that overlaps with a write is not cached.
+     */
+    private final StripedVersions versions = new StripedVersions();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param ttl        Time documents are reported absent (milliseconds)
+     * @param maxEntries Maximum number of absent documents
+     */
+    public NegativeCache(final long ttl, final long maxEntries) {
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Create cache from connection options, only when 'negativeCacheTtl' is provided.
+     *
+     * @param options The connection options
+     * @return The cache, NULL when not enabled.
+     * @throws IllegalArgumentException An option has an invalid value.
+     */
+    public static NegativeCache from(final Map<String, Object> options) throws IllegalArgumentException {
+
+        if (!options.containsKey(TTL)) {
+            if (options.containsKey(MAX_ENTRIES)) {
+                throw new IllegalArgumentException(String.format("Map item '%s' requires '%s'", MAX_ENTRIES, TTL));
+            }
+            return null;
+        }
+
+        final long ttl = ConversionTools.getLongValue(TTL, options.get(TTL), 0);
+        final long maxEntries = ConversionTools.getLongValue(MAX_ENTRIES, options.get(MAX_ENTRIES), DEFAULT_MAX_ENTRIES);
+        if (ttl <= 0 || maxEntries <= 0) {
+            throw new IllegalArgumentException(String.format("Map items '%s' and '%s' must be positive values", TTL, MAX_ENTRIES));
+        }
+
+        return new NegativeCache(ttl, maxEntries);
+    }
+
+    private static String createKey(final String bucketName, final String docName) {
+        return bucketName + '\u0000' + docName;
+    }
+
+    /**
+     * Check if the document has recently been found absent.
+     *
+     * @param bucketName Name of the bucket
+     * @param docName    Name of the document
+     * @return TRUE when the document is known to be absent.
+     */
+    public boolean isAbsent(final String bucketName, final String docName) {
+        final String key = createKey(bucketName, docName);
+
+        synchronized (this) {
+            final Long expires = entries.get(key);
+            if (expires == null) {
+                return false;
+            }
+
+            if (System.currentTimeMillis() >= expires) {
+                entries.remove(key);
+                return false;
+            }
+        }
+
+        hits.increment();
+        return true;
+    }
+
+    /**
+     * Get the version to pass to {@link #putAbsent(String, String, long)}, must be obtained
+     * before the document is retrieved.
+     *
+     * @param bucketName Name of the bucket
+     * @param docName    Name of the document
+     * @return The current version
+     */
+    public long getVersion(final String bucketName, final String docName) {
+        return versions.get(createKey(bucketName, docName));
+    }
+
+    /**
+     * Register an absent document, the eldest entries are evicted when the cache is full. Not
+     * registered when the document has been written since the version was obtained.
+     *
+     * @param bucketName Name of the bucket
+     * @param docName    Name of the document
+     * @param version    Version obtained before the document was retrieved
+     */
+    public void putAbsent(final String bucketName, final String docName, final long version) {
+
+        final String key = createKey(bucketName, docName);
+        final long expires = System.currentTimeMillis() + ttl;
+
+        synchronized (this) {
+            // A write overlapped with the retrieval
+            if (versions.get(key) != version) {
+                return;
+            }
+
+            entries.put(key, expires);
+
+            final Iterator<Long> iterator = entries.values().iterator();
+            while (entries.size() > maxEntries && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+
+        stores.increment();
+    }
+
+    /**
+     * Remove a document, e.g. after it has been written.
+     *
+     * @param bucketName Name of the bucket
+     * @param docName    Name of the document
+     */
+    public void invalidate(final String bucketName, final String docName) {
+        final String key = createKey(bucketName, docName);
+        versions.increment(key);
+
+        synchronized (this) {
+            if (entries.remove(key) == null) {
+                return;
+            }
+        }
+        invalidations.increment();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getStores() {
+        return stores.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public void getReport(final MemTreeBuilder builder) {
+
+        builder.startElement("", "negative-cache", "negative-cache", null);
+
+        addElement(builder, "ttl", ttl);
+        addElement(builder, "max-entries", maxEntries);
+        addElement(builder, "entries", size());
+        addElement(builder, "hits", getHits());
+        addElement(builder, "stores", getStores());
+        addElement(builder, "invalidations", getInvalidations());
+        addElement(builder, "evictions", getEvictions());
+
+        builder.endElement();
+    }
+
+    private static void addElement(final MemTreeBuilder builder, final String name, final long value) {
+        builder.startElement("", name, name, null);
+        builder.characters(Long.toString(value));
+        builder.endElement();
+    }
+}
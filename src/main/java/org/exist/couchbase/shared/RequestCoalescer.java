@@ -0,0 +1,147 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.shared;
+
+import org.exist.dom.memtree.MemTreeBuilder;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Single flight execution of identical requests: while a request for a key is in flight,
+ * concurrent callers for the same key wait for its result instead of sending their own
+ * request. The result is shared, it must not be modified by the callers. A write of the
+ * document detaches the request in flight, so that later callers do not get the result of
+ * a request that started before the write.
+ *
+ * @param <T> Type of the result
+ * @author Dannes Wessels
+ */
+public class RequestCoalescer<T> {
+
+    private final ConcurrentMap<String, CompletableFuture<T>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    private static String createKey(final String bucketName, final String docName) {
+        return bucketName + '\u0000' + docName;
+    }
+
+    /**
+     * Execute the request, or wait for the identical request that is already in flight.
+     *
+     * @param bucketName Name of the bucket
+     * @param docName    Name of the document
+     * @param timeout    Maximum time to wait for a request in flight
+     * @param unit       Unit of the timeout
+     * @param request    The request
+     * @return The result of the request, can be NULL
+     * @throws TimeoutException The request in flight did not complete within the timeout.
+     * @throws Exception        The request failed, the error is passed to all waiting callers.
+     */
+    public T execute(final String bucketName, final String docName, final long timeout, final TimeUnit unit,
+                     final Callable<T> request) throws Exception {
+
+        final String key = createKey(bucketName, docName);
+
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final CompletableFuture<T> existing = inFlight.putIfAbsent(key, future);
+
+        if (existing != null) {
+            coalesced.increment();
+            return join(existing, timeout, unit);
+        }
+
+        executed.increment();
+        try {
+            final T result = request.call();
+            future.complete(result);
+            return result;
+
+        } catch (final Throwable ex) {
+            future.completeExceptionally(ex);
+            throw ex;
+
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Detach the request in flight for a document, e.g. after the document has been written.
+     * Callers that already wait get its result, new callers send a new request.
+     *
+     * @param bucketName Name of the bucket
+     * @param docName    Name of the document
+     */
+    public void invalidate(final String bucketName, final String docName) {
+        inFlight.remove(createKey(bucketName, docName));
+    }
+
+    private static <T> T join(final CompletableFuture<T> future, final long timeout, final TimeUnit unit) throws Exception {
+        try {
+            return future.get(timeout, unit);
+
+        } catch (final ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Get number of requests that have been sent.
+     *
+     * @return Number of executed requests
+     */
+    public long getExecuted() {
+        return executed.sum();
+    }
+
+    /**
+     * Get number of callers that shared the result of a request in flight.
+     *
+     * @return Number of coalesced requests
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public void getReport(final MemTreeBuilder builder) {
+
+        builder.startElement("", "coalescing", "coalescing", null);
+
+        builder.startElement("", "executed", "executed", null);
+        builder.characters(Long.toString(getExecuted()));
+        builder.endElement();
+
+        builder.startElement("", "coalesced", "coalesced", null);
+        builder.characters(Long.toString(getCoalesced()));
+        builder.endElement();
+
+        builder.endElement();
+    }
+}
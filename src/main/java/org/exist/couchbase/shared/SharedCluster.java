@@ -0,0 +1,151 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.shared;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.CouchbaseCluster;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A CouchbaseCluster and its opened buckets, shared by all connections with the same
+ * connection string, credentials and environment profile. The number of references is
+ * maintained by the CouchbaseClusterManager.
+ *
+ * @author Dannes Wessels
+ */
+class SharedCluster {
+
+    protected final static Logger LOG = LogManager.getLogger(SharedCluster.class);
+
+    private final String key;
+
+    private final CouchbaseCluster cluster;
+
+    private final String bucketPassword;
+
+    /**
+     * The registered profile, released when the cluster is closed
+     */
+    private final EnvironmentProfile profile;
+
+    /**
+     * Opened buckets, keyed by bucket name
+     */
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * Only modified within the atomic operations of the manager's map
+     */
+    private volatile int references = 1;
+
+    SharedCluster(final String key, final CouchbaseCluster cluster, final String bucketPassword, final EnvironmentProfile profile) {
+        this.key = key;
+        this.cluster = cluster;
+        this.bucketPassword = bucketPassword;
+        this.profile = profile;
+    }
+
+    /**
+     * Create the key for sharing a cluster.
+     *
+     * @param environmentName  Name of the environment profile
+     * @param connectionString The connection string
+     * @param bucketPassword   The bucket password, can be NULL
+     * @return The key
+     */
+    static String createKey(final String environmentName, final String connectionString, final String bucketPassword) {
+        return environmentName + '\u0000' + connectionString + '\u0000' + (bucketPassword == null ? "" : bucketPassword);
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    CouchbaseCluster getCluster() {
+        return cluster;
+    }
+
+    EnvironmentProfile getProfile() {
+        return profile;
+    }
+
+    int retain() {
+        return ++references;
+    }
+
+    int release() {
+        return --references;
+    }
+
+    int getReferences() {
+        return references;
+    }
+
+    /**
+     * Get a bucket when it has already been opened.
+     *
+     * @param bucketName Name of the bucket
+     * @return The opened bucket, or NULL when not opened.
+     */
+    Bucket getOpenBucket(final String bucketName) {
+        final Bucket bucket = buckets.get(bucketName);
+        if (bucket != null && bucket.isClosed()) {
+            // Bucket has been closed elsewhere, reopen on next request
+            buckets.remove(bucketName, bucket);
+            return null;
+        }
+        return bucket;
+    }
+
+    /**
+     * Open a bucket, or return the bucket opened by another thread.
+     *
+     * @param bucketName Name of the bucket
+     * @return The opened bucket
+     */
+    Bucket openBucket(final String bucketName) {
+        return buckets.computeIfAbsent(bucketName, k -> cluster.openBucket(bucketName, bucketPassword));
+    }
+
+    Collection<Bucket> getOpenBuckets() {
+        return buckets.values();
+    }
+
+    /**
+     * Close all opened buckets and disconnect from the cluster.
+     */
+    void close() {
+        buckets.values().forEach((bucket) -> {
+            try {
+                bucket.close();
+            } catch (final Throwable ex) {
+                LOG.error(String.format("Unable to close bucket '%s': %s", bucket.name(), ex.getMessage()));
+            }
+        });
+        buckets.clear();
+
+        cluster.disconnect();
+    }
+}
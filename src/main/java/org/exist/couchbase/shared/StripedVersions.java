@@ -0,0 +1,58 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.shared;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Write versions of documents, used to detect that a document has been written while it was
+ * retrieved. Documents share a version per stripe: a write of another document in the same
+ * stripe only causes a retrieval not to be cached.
+ *
+ * @author Dannes Wessels
+ */
+class StripedVersions {
+
+    private static final int STRIPES = 256;
+
+    private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+
+    private static int stripe(final String key) {
+        final int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * @param key Key of the document
+     * @return The current version of the document
+     */
+    long get(final String key) {
+        return versions.get(stripe(key));
+    }
+
+    /**
+     * Register a write of the document.
+     *
+     * @param key Key of the document
+     */
+    void increment(final String key) {
+        versions.incrementAndGet(stripe(key));
+    }
+}
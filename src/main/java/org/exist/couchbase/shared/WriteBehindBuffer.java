@@ -0,0 +1,324 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.shared;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.document.Document;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.couchbase.shared.BulkOperation.Result;
+import org.exist.dom.memtree.MemTreeBuilder;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Bounded buffer of deferred upserts of a connection. A background thread drains the buffer in
+ * batches and writes each batch asynchronously; when a batch contains the same document more
+ * than once, only the last version is written. Callers are blocked when the buffer is full.
+ *
+ * @author Dannes Wessels
+ */
+public class WriteBehindBuffer {
+
+    protected final static Logger LOG = LogManager.getLogger(WriteBehindBuffer.class);
+
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private static final int BATCH_SIZE = 256;
+
+    private final String name;
+    private final int capacity;
+
+    private final Function<String, AsyncBucket> buckets;
+    private final ConnectionStatistics statistics;
+    private final BiConsumer<String, String> written;
+
+    /**
+     * Pending documents, only added while holding 'this'
+     */
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * Free space in the buffer, released when the flusher takes documents from the queue
+     */
+    private final Semaphore space;
+
+    /*
+     * Counters, guarded by 'this'. Used for the flush barrier: a document is added to the
+     * queue and counted atomically.
+     */
+    private long enqueued = 0L;
+    private long processed = 0L;
+
+    private long batches = 0L;
+    private long failed = 0L;
+    private long lastFlushLatency = 0L;
+    private long maxFlushLatency = 0L;
+    private long totalFlushLatency = 0L;
+
+    private Thread flusher = null;
+
+    /**
+     * Modified while holding 'this', no documents are added afterwards
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * @param name       Name of the buffer, used for the thread name
+     * @param capacity   Maximum number of pending documents
+     * @param buckets    Provides the bucket for a bucket name
+     * @param statistics Statistics for counting failed writes
+     * @param written    Invoked with bucket name and document name when the write of a document completed, also when it failed
+     */
+    public WriteBehindBuffer(final String name, final int capacity, final Function<String, AsyncBucket> buckets,
+                             final ConnectionStatistics statistics, final BiConsumer<String, String> written) {
+        this.name = name;
+        this.capacity = capacity;
+        this.buckets = buckets;
+        this.statistics = statistics;
+        this.written = written;
+        this.space = new Semaphore(capacity);
+    }
+
+    /**
+     * Add a document to the buffer, wait when the buffer is full.
+     *
+     * @param bucketName Name of the bucket
+     * @param document   The document
+     * @param wait       Maximum time to wait for space in the buffer (milliseconds)
+     * @return FALSE when the buffer is still full after waiting.
+     * @throws InterruptedException  Interrupted while waiting.
+     * @throws IllegalStateException The buffer has been closed.
+     */
+    public boolean offer(final String bucketName, final Document<?> document, final long wait) throws InterruptedException {
+
+        if (closed) {
+            throw new IllegalStateException(String.format("Deferred writes of '%s' have been closed.", name));
+        }
+
+        startFlusher();
+
+        // Wait for space without holding the lock
+        if (!space.tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (closed) {
+                space.release();
+                throw new IllegalStateException(String.format("Deferred writes of '%s' have been closed.", name));
+            }
+            queue.add(new Pending(bucketName, document));
+            enqueued++;
+        }
+        return true;
+    }
+
+    /**
+     * Wait until all documents that were added before this call have been written.
+     *
+     * @param wait Maximum time to wait (milliseconds)
+     * @return FALSE when the documents were not written within the time.
+     * @throws InterruptedException Interrupted while waiting.
+     */
+    public synchronized boolean flush(final long wait) throws InterruptedException {
+        final long target = enqueued;
+        final long deadline = System.currentTimeMillis() + wait;
+
+        while (processed < target) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Stop accepting documents, write the pending documents and stop the background thread.
+     *
+     * @param wait Maximum time to wait for the pending documents (milliseconds)
+     */
+    public void close(final long wait) {
+        synchronized (this) {
+            closed = true;
+        }
+
+        try {
+            if (!flush(wait)) {
+                LOG.error("Deferred writes of '{}' not completed, {} documents discarded", name, queue.size());
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        final Thread thread;
+        synchronized (this) {
+            thread = flusher;
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private synchronized void startFlusher() {
+        if (flusher == null) {
+            flusher = new Thread(this::run, "couchbase-write-behind-" + name);
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    private void run() {
+        final List<Pending> batch = new ArrayList<>(BATCH_SIZE);
+
+        while (!closed || !queue.isEmpty()) {
+            try {
+                final Pending first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                space.release(batch.size());
+
+            } catch (final InterruptedException ex) {
+                return;
+            }
+
+            final long start = System.nanoTime();
+            final int failures = write(batch);
+            final long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            synchronized (this) {
+                processed += batch.size();
+                batches++;
+                failed += failures;
+                lastFlushLatency = latency;
+                maxFlushLatency = Math.max(maxFlushLatency, latency);
+                totalFlushLatency += latency;
+                notifyAll();
+            }
+
+            batch.clear();
+        }
+    }
+
+    /**
+     * Write a batch, grouped by bucket.
+     *
+     * @return Number of documents that could not be written
+     */
+    private int write(final List<Pending> batch) {
+
+        // Last version of each document
+        final Map<String, Map<String, Document<?>>> documents = new LinkedHashMap<>();
+        for (final Pending pending : batch) {
+            documents.computeIfAbsent(pending.bucketName, k -> new LinkedHashMap<>()).put(pending.document.id(), pending.document);
+        }
+
+        int failures = 0;
+        for (final Map.Entry<String, Map<String, Document<?>>> entry : documents.entrySet()) {
+            final String bucketName = entry.getKey();
+            final Map<String, Document<?>> bucketDocuments = entry.getValue();
+
+            try {
+                final AsyncBucket bucket = buckets.apply(bucketName);
+                final long timeout = bucket.environment().kvTimeout();
+
+                final List<Result<Document<?>>> results = BulkOperation.execute(bucketDocuments.keySet(),
+                        docName -> bucket.upsert(bucketDocuments.get(docName)), BulkOperation.DEFAULT_CONCURRENCY, timeout);
+
+                for (final Result<Document<?>> result : results) {
+                    if (result.isFailed()) {
+                        failures++;
+                        statistics.increaseErrors(GenericExceptionHandler.getErrorCode(result.getError()).getErrorQName().getLocalPart());
+                        LOG.error(String.format("Deferred write of '%s' in bucket '%s' failed: %s", result.getKey(), bucketName, result.getError().getMessage()));
+                    }
+                    written.accept(bucketName, result.getKey());
+                }
+
+            } catch (final Throwable ex) {
+                failures += bucketDocuments.size();
+                statistics.increaseErrors(GenericExceptionHandler.getErrorCode(ex).getErrorQName().getLocalPart());
+                LOG.error(String.format("Deferred writes in bucket '%s' failed: %s", bucketName, ex.getMessage()));
+            }
+        }
+        return failures;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public synchronized long getProcessed() {
+        return processed;
+    }
+
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    public synchronized long getBatches() {
+        return batches;
+    }
+
+    public synchronized void getReport(final MemTreeBuilder builder) {
+
+        builder.startElement("", "write-behind", "write-behind", null);
+
+        addElement(builder, "capacity", capacity);
+        addElement(builder, "queue-depth", getQueueDepth());
+        addElement(builder, "enqueued", enqueued);
+        addElement(builder, "processed", processed);
+        addElement(builder, "failed", failed);
+        addElement(builder, "batches", batches);
+        addElement(builder, "last-flush-latency", lastFlushLatency);
+        addElement(builder, "max-flush-latency", maxFlushLatency);
+        addElement(builder, "average-flush-latency", batches == 0 ? 0L : totalFlushLatency / batches);
+
+        builder.endElement();
+    }
+
+    private static void addElement(final MemTreeBuilder builder, final String name, final long value) {
+        builder.startElement("", name, name, null);
+        builder.characters(Long.toString(value));
+        builder.endElement();
+    }
+
+    private static final class Pending {
+
+        private final String bucketName;
+        private final Document<?> document;
+
+        private Pending(final String bucketName, final Document<?> document) {
+            this.bucketName = bucketName;
+            this.document = document;
+        }
+    }
+}
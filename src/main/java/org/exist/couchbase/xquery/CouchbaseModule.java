@@ -19,6 +19,12 @@
  */
 package org.exist.couchbase.xquery;
 
+import org.exist.couchbase.shared.CouchbaseClusterManager;
+import org.exist.couchbase.shared.EnvironmentProfile;
+import org.exist.couchbase.xquery.async.Await;
+import org.exist.couchbase.xquery.async.GetAsync;
+import org.exist.couchbase.xquery.async.N1QLQueryAsync;
+import org.exist.couchbase.xquery.async.ViewQueryAsync;
 import org.exist.couchbase.xquery.bucket.InsertBucket;
 import org.exist.couchbase.xquery.bucket.ListBuckets;
 import org.exist.couchbase.xquery.bucket.RemoveBucket;
@@ -27,19 +33,33 @@ import org.exist.couchbase.xquery.client.Shutdown;
 import org.exist.couchbase.xquery.design.GetRemoveDesignDocument;
 import org.exist.couchbase.xquery.design.InsertUpsertDesignDocument;
 import org.exist.couchbase.xquery.design.ListDesignDocuments;
+import org.exist.couchbase.xquery.document.Counter;
+import org.exist.couchbase.xquery.document.CounterMulti;
+import org.exist.couchbase.xquery.document.Exists;
 import org.exist.couchbase.xquery.document.Get;
+import org.exist.couchbase.xquery.document.GetBinary;
+import org.exist.couchbase.xquery.document.GetMulti;
+import org.exist.couchbase.xquery.document.Lookup;
+import org.exist.couchbase.xquery.document.Mutate;
 import org.exist.couchbase.xquery.document.Remove;
+import org.exist.couchbase.xquery.document.RemoveMulti;
 import org.exist.couchbase.xquery.document.Upsert;
+import org.exist.couchbase.xquery.document.UpsertBinary;
+import org.exist.couchbase.xquery.document.UpsertDeferred;
+import org.exist.couchbase.xquery.document.UpsertMulti;
 import org.exist.couchbase.xquery.query.N1QLQuery;
 import org.exist.couchbase.xquery.query.ViewQuery;
+import org.exist.couchbase.xquery.raw.GetRaw;
+import org.exist.couchbase.xquery.raw.N1QLQueryRaw;
+import org.exist.couchbase.xquery.raw.UpsertRaw;
+import org.exist.couchbase.xquery.raw.ViewQueryRaw;
 import org.exist.dom.QName;
 import org.exist.xquery.AbstractInternalModule;
 import org.exist.xquery.ErrorCodes.ErrorCode;
 import org.exist.xquery.FunctionDef;
 import org.exist.xquery.XPathException;
 
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 public class CouchbaseModule extends AbstractInternalModule {
 
@@ -54,10 +74,36 @@ public class CouchbaseModule extends AbstractInternalModule {
             new FunctionDef(Connect.signatures[1], Connect.class),
             new FunctionDef(ListClusterIds.signatures[0], ListClusterIds.class),
             new FunctionDef(ConnectionReport.signatures[0], ConnectionReport.class),
+            new FunctionDef(Flush.signatures[0], Flush.class),
+            new FunctionDef(Flush.signatures[1], Flush.class),
             new FunctionDef(Get.signatures[0], Get.class),
+            new FunctionDef(Get.signatures[1], Get.class),
+            new FunctionDef(GetMulti.signatures[0], GetMulti.class),
+            new FunctionDef(GetMulti.signatures[1], GetMulti.class),
+            new FunctionDef(Exists.signatures[0], Exists.class),
+            new FunctionDef(Exists.signatures[1], Exists.class),
+            new FunctionDef(Lookup.signatures[0], Lookup.class),
+            new FunctionDef(Lookup.signatures[1], Lookup.class),
+            new FunctionDef(Counter.signatures[0], Counter.class),
+            new FunctionDef(Counter.signatures[1], Counter.class),
+            new FunctionDef(CounterMulti.signatures[0], CounterMulti.class),
+            new FunctionDef(CounterMulti.signatures[1], CounterMulti.class),
+            new FunctionDef(Mutate.signatures[0], Mutate.class),
+            new FunctionDef(Mutate.signatures[1], Mutate.class),
             new FunctionDef(Remove.signatures[0], Remove.class),
+            new FunctionDef(RemoveMulti.signatures[0], RemoveMulti.class),
+            new FunctionDef(RemoveMulti.signatures[1], RemoveMulti.class),
             new FunctionDef(Upsert.signatures[0], Upsert.class),
             new FunctionDef(Upsert.signatures[1], Upsert.class),
+            new FunctionDef(Upsert.signatures[2], Upsert.class),
+            new FunctionDef(Upsert.signatures[3], Upsert.class),
+            new FunctionDef(GetBinary.signatures[0], GetBinary.class),
+            new FunctionDef(UpsertBinary.signatures[0], UpsertBinary.class),
+            new FunctionDef(UpsertDeferred.signatures[0], UpsertDeferred.class),
+            new FunctionDef(UpsertMulti.signatures[0], UpsertMulti.class),
+            new FunctionDef(UpsertMulti.signatures[1], UpsertMulti.class),
+            new FunctionDef(UpsertMulti.signatures[2], UpsertMulti.class),
+            new FunctionDef(UpsertMulti.signatures[3], UpsertMulti.class),
             new FunctionDef(ListDesignDocuments.signatures[0], ListDesignDocuments.class),
             new FunctionDef(InsertUpsertDesignDocument.signatures[0], InsertUpsertDesignDocument.class),
             new FunctionDef(InsertUpsertDesignDocument.signatures[1], InsertUpsertDesignDocument.class),
@@ -65,6 +111,15 @@ public class CouchbaseModule extends AbstractInternalModule {
             new FunctionDef(GetRemoveDesignDocument.signatures[1], GetRemoveDesignDocument.class),
             new FunctionDef(ViewQuery.signatures[0], ViewQuery.class),
             new FunctionDef(N1QLQuery.signatures[0], N1QLQuery.class),
+            new FunctionDef(GetAsync.signatures[0], GetAsync.class),
+            new FunctionDef(ViewQueryAsync.signatures[0], ViewQueryAsync.class),
+            new FunctionDef(N1QLQueryAsync.signatures[0], N1QLQueryAsync.class),
+            new FunctionDef(Await.signatures[0], Await.class),
+            new FunctionDef(GetRaw.signatures[0], GetRaw.class),
+            new FunctionDef(ViewQueryRaw.signatures[0], ViewQueryRaw.class),
+            new FunctionDef(N1QLQueryRaw.signatures[0], N1QLQueryRaw.class),
+            new FunctionDef(UpsertRaw.signatures[0], UpsertRaw.class),
+            new FunctionDef(UpsertRaw.signatures[1], UpsertRaw.class),
             new FunctionDef(InsertBucket.signatures[0], InsertBucket.class),
             new FunctionDef(RemoveBucket.signatures[0], RemoveBucket.class),
             new FunctionDef(ListBuckets.signatures[0], ListBuckets.class),
@@ -95,6 +150,12 @@ public class CouchbaseModule extends AbstractInternalModule {
     public final static ErrorCode COBA0003
             = new CouchbaseErrorCode("COBA0003", "User is not authorized: Wrong group or does not have the DBA role.");
 
+    /**
+     * Too many invalid clusterIds
+     */
+    public final static ErrorCode COBA0004
+            = new CouchbaseErrorCode("COBA0004", "Forbidden: too many invalid clusterIds, try again later.");
+
     /*
      *  Below are the Couchbase specific errors/exceptions
      */
@@ -171,6 +232,12 @@ public class CouchbaseModule extends AbstractInternalModule {
     public final static ErrorCode COBA0021
             = new CouchbaseErrorCode("COBA0021", "InvalidPasswordException: the password for the bucket does not match.");
 
+    /**
+     * CASMismatchException: the document has been modified concurrently
+     */
+    public final static ErrorCode COBA0022
+            = new CouchbaseErrorCode("COBA0022", "CASMismatchException: the CAS value does not match, the document has been modified concurrently.");
+
     /**
      * DesignDocumentAlreadyExistsException: the design document already exists
      */
@@ -202,8 +269,143 @@ public class CouchbaseModule extends AbstractInternalModule {
             = new QName("exception-message", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX);
 
 
+    /**
+     * Module parameter: connections idle for longer than this period (milliseconds) are closed.
+     */
+    public final static String PARAM_IDLE_TIMEOUT = "idleTimeout";
+
+    /**
+     * Module parameter: maximum number of connections, least recently used connections are closed.
+     */
+    public final static String PARAM_MAX_CONNECTIONS = "maxConnections";
+
+    /**
+     * Module parameter prefix: named connection, 'connection.[name].url|buckets|environment|password'
+     */
+    public final static String PARAM_CONNECTION_PREFIX = "connection.";
+
+    /**
+     * Module parameter prefix: environment profile setting, 'environment.[name].[setting]'
+     */
+    public final static String PARAM_ENVIRONMENT_PREFIX = "environment.";
+
+    private final static String URL = "url";
+    private final static String BUCKETS = "buckets";
+    private final static String PASSWORD = "password";
+
     public CouchbaseModule(final Map<String, List<?>> parameters) throws XPathException {
         super(functions, parameters);
+
+        final String idleTimeout = getParameterValue(parameters, PARAM_IDLE_TIMEOUT);
+        final String maxConnections = getParameterValue(parameters, PARAM_MAX_CONNECTIONS);
+
+        if (idleTimeout != null || maxConnections != null) {
+            try {
+                CouchbaseClusterManager.getInstance().configureEviction(
+                        idleTimeout == null ? 0L : Long.parseLong(idleTimeout),
+                        maxConnections == null ? 0 : Integer.parseInt(maxConnections));
+
+            } catch (final IllegalArgumentException ex) {
+                throw new XPathException(COBA0002, String.format("Invalid module parameter: %s", ex.getMessage()));
+            }
+        }
+
+        registerConnections(parameters);
+    }
+
+    /**
+     * Register the named connections declared in conf.xml, the buckets are opened in the background.
+     *
+     * @param parameters The module parameters
+     * @throws XPathException A connection or environment is not configured correctly.
+     */
+    private static void registerConnections(final Map<String, List<?>> parameters) throws XPathException {
+        if (parameters == null) {
+            return;
+        }
+
+        final Map<String, Map<String, String>> environments = getGroupedParameters(parameters, PARAM_ENVIRONMENT_PREFIX);
+        final Map<String, Map<String, String>> connections = getGroupedParameters(parameters, PARAM_CONNECTION_PREFIX);
+
+        final CouchbaseClusterManager cmm = CouchbaseClusterManager.getInstance();
+
+        for (final Map.Entry<String, Map<String, String>> connection : connections.entrySet()) {
+            final String name = connection.getKey();
+            final Map<String, String> settings = connection.getValue();
+
+            final String url = settings.get(URL);
+            if (url == null) {
+                throw new XPathException(COBA0002, String.format("Invalid module parameter: no url for connection '%s'", name));
+            }
+
+            // Environment profile, when not declared the profile is registered without settings
+            final String environmentName = settings.getOrDefault(EnvironmentProfile.ENVIRONMENT, EnvironmentProfile.DEFAULT);
+            final Map<String, Object> options = new HashMap<>();
+            options.put(EnvironmentProfile.ENVIRONMENT, environmentName);
+
+            try {
+                for (final Map.Entry<String, String> setting : environments.getOrDefault(environmentName, Collections.emptyMap()).entrySet()) {
+                    if (!EnvironmentProfile.KEYS.contains(setting.getKey()) || EnvironmentProfile.ENVIRONMENT.equals(setting.getKey())) {
+                        throw new IllegalArgumentException(String.format("'%s' is not a valid environment setting", setting.getKey()));
+                    }
+                    options.put(setting.getKey(), EnvironmentProfile.MUTATION_TOKENS_ENABLED.equals(setting.getKey())
+                            ? (Object) Boolean.parseBoolean(setting.getValue())
+                            : (Object) Long.parseLong(setting.getValue()));
+                }
+
+                final List<String> buckets = new ArrayList<>();
+                for (final String bucket : settings.getOrDefault(BUCKETS, "").split(",")) {
+                    if (!bucket.trim().isEmpty()) {
+                        buckets.add(bucket.trim());
+                    }
+                }
+
+                cmm.register(name, url, settings.get(PASSWORD), EnvironmentProfile.from(options), buckets);
+
+            } catch (final IllegalArgumentException ex) {
+                throw new XPathException(COBA0002, String.format("Invalid module parameter for connection '%s': %s", name, ex.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Group the parameters '[prefix][name].[key]' by name.
+     *
+     * @param parameters The module parameters
+     * @param prefix     Prefix of the parameter names
+     * @return Values keyed by name and key.
+     */
+    private static Map<String, Map<String, String>> getGroupedParameters(final Map<String, List<?>> parameters, final String prefix) {
+        final Map<String, Map<String, String>> retVal = new TreeMap<>();
+
+        for (final String parameter : parameters.keySet()) {
+            final int separator = parameter.lastIndexOf('.');
+            if (parameter.startsWith(prefix) && separator > prefix.length()) {
+                final String value = getParameterValue(parameters, parameter);
+                if (value != null) {
+                    retVal.computeIfAbsent(parameter.substring(prefix.length(), separator), k -> new HashMap<>())
+                            .put(parameter.substring(separator + 1), value);
+                }
+            }
+        }
+
+        return retVal;
+    }
+
+    /**
+     * Get the first value of a module parameter as configured in conf.xml
+     *
+     * @param parameters The module parameters
+     * @param name       Name of the parameter
+     * @return The value, or NULL when not configured.
+     */
+    private static String getParameterValue(final Map<String, List<?>> parameters, final String name) {
+        if (parameters == null) {
+            return null;
+        }
+
+        final List<?> values = parameters.get(name);
+        return (values == null || values.isEmpty()) ? null : values.get(0).toString().trim();
     }
 
     @Override
@@ -0,0 +1,94 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.xquery.async;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import org.exist.couchbase.shared.AsyncHandles;
+import org.exist.couchbase.shared.AsyncHandles.Pending;
+import org.exist.couchbase.shared.GenericExceptionHandler;
+import org.exist.couchbase.shared.JsonToMap;
+import org.exist.couchbase.xquery.CouchbaseModule;
+import org.exist.dom.QName;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.*;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Collect the results of asynchronous operations.
+ *
+ * @author Dannes Wessels
+ */
+public class Await extends BasicFunction {
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName("await", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Wait for asynchronous operations started in this XQuery. A handle can be awaited once.",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("handles", Type.STRING, Cardinality.ZERO_OR_MORE, "Handles of the operations"),
+                    },
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ONE, "The Json results keyed by handle, empty sequence for a document that is not found.")
+            ),};
+
+    public Await(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        final AsyncHandles handles = AsyncHandles.getInstance(context);
+
+        final MapType retVal = new MapType(context);
+
+        // The operations run concurrently, waiting in order takes as long as the slowest operation
+        for (final SequenceIterator i = args[0].iterate(); i.hasNext(); ) {
+            final String handle = i.nextItem().getStringValue();
+
+            final Pending pending = handles.remove(handle);
+            if (pending == null) {
+                throw new XPathException(this, CouchbaseModule.COBA0002, String.format("'%s' is not a valid handle.", handle));
+            }
+
+            try {
+                final List<JsonObject> results = pending.getFuture().get();
+
+                final ValueSequence values = new ValueSequence();
+                for (final JsonObject result : results) {
+                    values.add(JsonToMap.convert(result, context));
+                }
+                retVal.add(new StringValue(handle), values);
+
+            } catch (final ExecutionException ex) {
+                GenericExceptionHandler.handleException(this, ex.getCause(), pending.getConnection());
+
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new XPathException(this, CouchbaseModule.COBA0000, String.format("Interrupted while waiting for '%s'.", handle));
+            }
+        }
+
+        return retVal;
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.xquery.async;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.document.JsonDocument;
+import org.exist.couchbase.shared.ConnectionStatistics.Operation;
+import org.exist.couchbase.shared.Constants;
+import org.exist.couchbase.shared.*;
+import org.exist.couchbase.xquery.CouchbaseModule;
+import org.exist.dom.QName;
+import org.exist.xquery.*;
+import org.exist.xquery.value.*;
+
+/**
+ * Retrieve document without waiting for the result.
+ *
+ * @author Dannes Wessels
+ */
+public class GetAsync extends BasicFunction {
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName("get-async", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Start retrieving a document from bucket, the result is collected with couchbase:await().",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("documentName", Type.STRING, Cardinality.ONE, "Name of document"),},
+                    new FunctionReturnSequenceType(Type.STRING, Cardinality.ONE, "The handle of the operation.")
+            ),};
+
+    public GetAsync(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        final CouchbaseClusterManager cmm = CouchbaseClusterManager.getInstance();
+
+        // Get connection details
+        final String clusterId = args[0].itemAt(0).getStringValue();
+
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
+
+        // Retrieve other parameters
+        final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
+
+        final String docName = args[2].itemAt(0).getStringValue();
+
+        // Count invocation
+        connection.getStatistics().increase(Operation.GET);
+
+        try {
+            // Get reference to bucket
+            final AsyncBucket bucket = connection.getBucket(bucketName).async();
+
+            // Start action
+            final String handle = AsyncHandles.getInstance(context).register(connection,
+                    bucket.get(docName).map(JsonDocument::content), bucket.environment().kvTimeout());
+
+            // Return handle
+            return new StringValue(handle);
+
+        } catch (final Throwable ex) {
+            return GenericExceptionHandler.handleException(this, ex, connection);
+        }
+
+    }
+
+}
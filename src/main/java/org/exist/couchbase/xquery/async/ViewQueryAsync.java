@@ -0,0 +1,121 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.xquery.async;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.view.AsyncViewResult;
+import org.exist.couchbase.shared.ConnectionStatistics.Operation;
+import org.exist.couchbase.shared.Constants;
+import org.exist.couchbase.shared.*;
+import org.exist.couchbase.xquery.CouchbaseModule;
+import org.exist.couchbase.xquery.query.ViewQuery;
+import org.exist.dom.QName;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.map.AbstractMapType;
+import org.exist.xquery.value.*;
+import rx.Observable;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Query a view without waiting for the results.
+ *
+ * @author Dannes Wessels
+ */
+public class ViewQueryAsync extends BasicFunction {
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName("query-async", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Start a view query with the default view timeout, the results are collected with couchbase:await().",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("design", Type.STRING, Cardinality.ONE, "Name of design document"),
+                            new FunctionParameterSequenceType("view", Type.STRING, Cardinality.ONE, "Name of view"),
+                            new FunctionParameterSequenceType("parameters", Type.MAP, Cardinality.ZERO_OR_ONE, "Query parameters")
+
+                    },
+                    new FunctionReturnSequenceType(Type.STRING, Cardinality.ONE, "The handle of the operation.")
+            ),};
+
+    public ViewQueryAsync(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        final CouchbaseClusterManager cmm = CouchbaseClusterManager.getInstance();
+
+        // Get connection details
+        final String clusterId = args[0].itemAt(0).getStringValue();
+
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
+
+        // Retrieve other parameters
+        final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
+
+        final String design = args[2].itemAt(0).getStringValue();
+        final String view = args[3].itemAt(0).getStringValue();
+
+        final Map<String, Object> parameters = (args[4].isEmpty())
+                ? new HashMap<>()
+                : ConversionTools.convert((AbstractMapType) args[4].itemAt(0));
+
+        // Count invocation
+        connection.getStatistics().increase(Operation.VIEW);
+
+        try {
+            // Prepare query
+            final com.couchbase.client.java.view.ViewQuery viewQuery = ViewQuery.parseParameters(
+                    com.couchbase.client.java.view.ViewQuery.from(design, view), parameters);
+
+            // Get reference to bucket
+            final AsyncBucket bucket = connection.getBucket(bucketName).async();
+
+            // Documents are retrieved concurrently, the index of the row restores the order of the rows
+            final Observable<JsonObject> documents = bucket.query(viewQuery)
+                    .flatMap(AsyncViewResult::rows)
+                    .zipWith(Observable.range(0, Integer.MAX_VALUE), (row, index) -> new SimpleImmutableEntry<>(index, row))
+                    .flatMap(row -> row.getValue().document()
+                                    .map(document -> new SimpleImmutableEntry<>(row.getKey(), document.content())),
+                            BulkOperation.DEFAULT_CONCURRENCY)
+                    .toSortedList((first, second) -> Integer.compare(first.getKey(), second.getKey()))
+                    .flatMapIterable(entries -> entries)
+                    .map(SimpleImmutableEntry::getValue);
+
+            // Start action
+            final String handle = AsyncHandles.getInstance(context).register(connection, documents, bucket.environment().viewTimeout());
+
+            // Return handle
+            return new StringValue(handle);
+
+        } catch (final Throwable ex) {
+            return GenericExceptionHandler.handleException(this, ex, connection);
+        }
+
+    }
+
+}
@@ -61,7 +61,7 @@ public class ListBuckets extends BasicFunction {
 
         // Get connection details
         final String clusterId = args[0].itemAt(0).getStringValue();
-        CouchbaseClusterManager.getInstance().validate(clusterId);
+        CouchbaseClusterManager.getInstance().validate(clusterId, context.getSubject().getName());
 
         // Get additional parameters
         final String username = args[1].itemAt(0).getStringValue();
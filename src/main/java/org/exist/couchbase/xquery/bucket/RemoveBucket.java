@@ -60,7 +60,7 @@ public class RemoveBucket extends BasicFunction {
 
         // Get connection details
         final String clusterId = args[0].itemAt(0).getStringValue();
-        CouchbaseClusterManager.getInstance().validate(clusterId);
+        CouchbaseClusterManager.getInstance().validate(clusterId, context.getSubject().getName());
 
         // Get additional parameters
         final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
@@ -20,13 +20,19 @@
 package org.exist.couchbase.xquery.client;
 
 import org.exist.couchbase.shared.Constants;
-import org.exist.couchbase.shared.CouchbaseClusterManager;
-import org.exist.couchbase.shared.GenericExceptionHandler;
+import org.exist.couchbase.shared.*;
 import org.exist.couchbase.xquery.CouchbaseModule;
 import org.exist.dom.QName;
 import org.exist.xquery.*;
+import org.exist.xquery.functions.map.AbstractMapType;
 import org.exist.xquery.value.*;
 
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * Connect to couchbase cluster
  *
@@ -35,6 +41,27 @@ import org.exist.xquery.value.*;
 
 public class Connect extends BasicFunction {
 
+    private static final String PASSWORD = "password";
+    private static final String BUCKETS = "buckets";
+    private static final String WAIT_UNTIL_READY = "waitUntilReady";
+    private static final String READY_TIMEOUT = "readyTimeout";
+
+    private static final long DEFAULT_READY_TIMEOUT = 10000L;
+
+    /**
+     * All valid keys of the options map
+     */
+    private static final Set<String> OPTIONS = new HashSet<>(EnvironmentProfile.KEYS);
+
+    static {
+        OPTIONS.addAll(NearCache.KEYS);
+        OPTIONS.addAll(NegativeCache.KEYS);
+        OPTIONS.add(PASSWORD);
+        OPTIONS.add(BUCKETS);
+        OPTIONS.add(WAIT_UNTIL_READY);
+        OPTIONS.add(READY_TIMEOUT);
+    }
+
     public final static FunctionSignature signatures[] = {
             new FunctionSignature(
                     new QName("connect", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
@@ -49,7 +76,18 @@ public class Connect extends BasicFunction {
                     "Connect to Couchbase server",
                     new SequenceType[]{
                             new FunctionParameterSequenceType("connection", Type.STRING, Cardinality.ONE, "Server connection string"),
-                            new FunctionParameterSequenceType("password", Type.STRING, Cardinality.ONE, "Bucket passsword")
+                            new FunctionParameterSequenceType("options", Type.ITEM, Cardinality.ONE, "Bucket passsword, or a map with connection options: "
+                                    + "'password', 'environment' (name of the environment profile) and the profile settings "
+                                    + "'connectTimeout', 'kvTimeout' (milliseconds), 'ioPoolSize', 'computationPoolSize', "
+                                    + "'kvEndpoints', 'queryEndpoints' and 'mutationTokensEnabled' (boolean). Connections with the same environment profile share "
+                                    + "one environment; the settings are applied when the profile is created. "
+                                    + "'buckets' (sequence or array of names) are opened upfront; with 'waitUntilReady' the function "
+                                    + "returns when their key/value endpoints are connected, or fails after 'readyTimeout' (milliseconds, default 10000). "
+                                    + "With 'nearCacheMaxEntries' (default 10000), 'nearCacheMaxBytes' (size of the Json text, default 16MB) "
+                                    + "or 'nearCacheTtl' (milliseconds, default 60000) documents retrieved with couchbase:get() are cached "
+                                    + "for this connection; an expired document is revalidated with its CAS value. "
+                                    + "With 'negativeCacheTtl' (milliseconds) a document that was not found is reported absent "
+                                    + "without a request for that time, at most 'negativeCacheMaxEntries' (default 10000) documents.")
                     },
                     new FunctionReturnSequenceType(Type.STRING, Cardinality.ONE, "The identifier for the cluster connection")
             ),
@@ -74,14 +112,50 @@ public class Connect extends BasicFunction {
             // Get connection string URL
             final String connectionString = args[0].itemAt(0).getStringValue();
 
-            // Get password for bucket, when available
-            final String password = (getArgumentCount() > 1) ? args[1].itemAt(0).getStringValue() : null;
+            // Get password for bucket or the options, when available
+            final Item item = (getArgumentCount() > 1) ? args[1].itemAt(0) : null;
+
+            final Map<String, Object> options = (item != null && item.getType() == Type.MAP)
+                    ? ConversionTools.convert((AbstractMapType) item, Collections.singleton(BUCKETS))
+                    : Collections.emptyMap();
+
+            final List<String> buckets = (item != null && item.getType() == Type.MAP)
+                    ? ConversionTools.getStringValues((AbstractMapType) item, BUCKETS)
+                    : Collections.emptyList();
+
+            for (final String key : options.keySet()) {
+                if (!OPTIONS.contains(key)) {
+                    throw new IllegalArgumentException(String.format("'%s' is not a valid option.", key));
+                }
+            }
+
+            final String password = (item == null || item.getType() == Type.MAP)
+                    ? ConversionTools.getStringValue(PASSWORD, options.get(PASSWORD), null)
+                    : item.getStringValue();
+
+            // Get the environment profile
+            final EnvironmentProfile profile = EnvironmentProfile.from(options);
 
             // Username is only used for reporting.
             final String username = context.getEffectiveUser().getUsername();
 
             // Register connection
-            final String clusterId = CouchbaseClusterManager.getInstance().create(connectionString, username, password);
+            final CouchbaseClusterManager cmm = CouchbaseClusterManager.getInstance();
+            final String clusterId = cmm.create(connectionString, username, password, profile,
+                    NearCache.from(options), NegativeCache.from(options));
+
+            // Pre-open buckets
+            if (!buckets.isEmpty()) {
+                try {
+                    cmm.validateConnection(clusterId, context.getSubject().getName()).warmUp(buckets,
+                            ConversionTools.getBooleanValue(WAIT_UNTIL_READY, options.get(WAIT_UNTIL_READY), false),
+                            ConversionTools.getLongValue(READY_TIMEOUT, options.get(READY_TIMEOUT), DEFAULT_READY_TIMEOUT));
+
+                } catch (final Throwable ex) {
+                    cmm.remove(clusterId);
+                    throw ex;
+                }
+            }
 
             // Return id
             return new StringValue(clusterId);
@@ -71,6 +71,8 @@ public class ConnectionReport extends BasicFunction {
         // start root element
         final int nodeNr = builder.startElement("", "couchbase", "couchbase", null);
 
+        cmm.getReport(builder);
+
         cmm.getClusterConnections().forEach((connection) -> connection.getReport(builder));
 
         builder.endElement();
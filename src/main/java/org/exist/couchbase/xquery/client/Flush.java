@@ -0,0 +1,95 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.xquery.client;
+
+import org.exist.couchbase.shared.CouchbaseClusterConnection;
+import org.exist.couchbase.shared.CouchbaseClusterManager;
+import org.exist.couchbase.shared.GenericExceptionHandler;
+import org.exist.couchbase.xquery.CouchbaseModule;
+import org.exist.dom.QName;
+import org.exist.xquery.*;
+import org.exist.xquery.value.*;
+
+/**
+ * Wait for the deferred upserts of a connection
+ *
+ * @author Dannes Wessels
+ */
+public class Flush extends BasicFunction {
+
+    private static final long DEFAULT_TIMEOUT = 30000L;
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName("flush", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Wait until the documents passed to couchbase:upsert-deferred() before this call have been written, "
+                            + "at most 30 seconds.",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId")
+                    },
+                    new FunctionReturnSequenceType(Type.EMPTY, Cardinality.ZERO, "Empty sequence")
+            ),
+            new FunctionSignature(
+                    new QName("flush", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Wait until the documents passed to couchbase:upsert-deferred() before this call have been written.",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("timeout", Type.INTEGER, Cardinality.ONE, "Maximum time to wait (milliseconds), "
+                                    + "fails with COBA0011 when exceeded")
+                    },
+                    new FunctionReturnSequenceType(Type.EMPTY, Cardinality.ZERO, "Empty sequence")
+            ),
+    };
+
+    public Flush(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        final CouchbaseClusterManager cmm = CouchbaseClusterManager.getInstance();
+
+        // Get connection details
+        final String clusterId = args[0].itemAt(0).getStringValue();
+
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
+
+        final long timeout = (getArgumentCount() > 1)
+                ? ((NumericValue) args[1].itemAt(0)).getLong()
+                : DEFAULT_TIMEOUT;
+
+        try {
+            // Wait for the pending upserts
+            if (!connection.getWriteBehindBuffer().flush(timeout)) {
+                throw new XPathException(this, CouchbaseModule.COBA0011,
+                        String.format("Deferred upserts not written within %s milliseconds.", timeout));
+            }
+
+            // Return nothing
+            return EmptySequence.EMPTY_SEQUENCE;
+
+        } catch (final Throwable ex) {
+            return GenericExceptionHandler.handleException(this, ex, connection);
+        }
+
+    }
+}
@@ -19,11 +19,11 @@
  */
 package org.exist.couchbase.xquery.design;
 
-import com.couchbase.client.java.CouchbaseCluster;
 import com.couchbase.client.java.bucket.BucketManager;
 import com.couchbase.client.java.error.DesignDocumentDoesNotExistException;
 import com.couchbase.client.java.view.DesignDocument;
 import org.exist.couchbase.shared.Constants;
+import org.exist.couchbase.shared.CouchbaseClusterConnection;
 import org.exist.couchbase.shared.CouchbaseClusterManager;
 import org.exist.couchbase.shared.GenericExceptionHandler;
 import org.exist.couchbase.shared.JsonToMap;
@@ -71,18 +71,17 @@ public class GetRemoveDesignDocument extends BasicFunction {
         // Get connection details
         final String clusterId = args[0].itemAt(0).getStringValue();
 
-        // Get reference to cluster
-        final CouchbaseCluster cluster = cmm.validate(clusterId);
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
 
         // Retrieve other parameters             
         final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
         final String designName = args[2].itemAt(0).getStringValue();
 
-        final String bucketPassword = cmm.getBucketPassword(clusterId);
 
         try {
             // Get access to bucketmanager
-            final BucketManager bucketManager = cluster.openBucket(bucketName, bucketPassword).bucketManager();
+            final BucketManager bucketManager = connection.getBucket(bucketName).bucketManager();
 
             if (isCalledAs("get-design-document")) {
                 // Retrieve all design documents
@@ -102,7 +101,7 @@ public class GetRemoveDesignDocument extends BasicFunction {
 
 
         } catch (final Throwable ex) {
-            return GenericExceptionHandler.handleException(this, ex);
+            return GenericExceptionHandler.handleException(this, ex, connection);
         }
 
     }
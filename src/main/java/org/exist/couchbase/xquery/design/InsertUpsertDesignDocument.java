@@ -19,7 +19,6 @@
  */
 package org.exist.couchbase.xquery.design;
 
-import com.couchbase.client.java.CouchbaseCluster;
 import com.couchbase.client.java.bucket.BucketManager;
 import com.couchbase.client.java.document.json.JsonObject;
 import com.couchbase.client.java.view.DesignDocument;
@@ -72,18 +71,17 @@ public class InsertUpsertDesignDocument extends BasicFunction {
         // Get connection details
         final String clusterId = args[0].itemAt(0).getStringValue();
 
-        // Get reference to cluster
-        final CouchbaseCluster cluster = cmm.validate(clusterId);
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
 
         // Retrieve other parameters             
         final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
         final String designName = args[2].itemAt(0).getStringValue();
 
-        final String bucketPassword = cmm.getBucketPassword(clusterId);
 
         try {
             // Get access to bucketmanager
-            final BucketManager bucketManager = cluster.openBucket(bucketName, bucketPassword).bucketManager();
+            final BucketManager bucketManager = connection.getBucket(bucketName).bucketManager();
 
             // Convert to JSonObject
             final JsonObject jsonObject = (JsonObject) MapToJson.convert(args[3]);
@@ -99,7 +97,7 @@ public class InsertUpsertDesignDocument extends BasicFunction {
             return designDocument == null ? Sequence.EMPTY_SEQUENCE : JsonToMap.convert(designDocument.toJsonObject(), context);
 
         } catch (final Throwable ex) {
-            return GenericExceptionHandler.handleException(this, ex);
+            return GenericExceptionHandler.handleException(this, ex, connection);
         }
 
     }
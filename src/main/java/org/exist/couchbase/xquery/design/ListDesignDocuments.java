@@ -19,10 +19,10 @@
  */
 package org.exist.couchbase.xquery.design;
 
-import com.couchbase.client.java.CouchbaseCluster;
 import com.couchbase.client.java.bucket.BucketManager;
 import com.couchbase.client.java.view.DesignDocument;
 import org.exist.couchbase.shared.Constants;
+import org.exist.couchbase.shared.CouchbaseClusterConnection;
 import org.exist.couchbase.shared.CouchbaseClusterManager;
 import org.exist.couchbase.shared.GenericExceptionHandler;
 import org.exist.couchbase.xquery.CouchbaseModule;
@@ -60,17 +60,16 @@ public class ListDesignDocuments extends BasicFunction {
         // Get connection details
         final String clusterId = args[0].itemAt(0).getStringValue();
 
-        // Get reference to cluster
-        final CouchbaseCluster cluster = cmm.validate(clusterId);
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
 
         // Retrieve other parameters             
         final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
-        final String bucketPassword = cmm.getBucketPassword(clusterId);
 
 
         try {
             // Get access to bucketmanager
-            final BucketManager bucketManager = cluster.openBucket(bucketName, bucketPassword).bucketManager();
+            final BucketManager bucketManager = connection.getBucket(bucketName).bucketManager();
 
             // Retrieve all design documents
             final java.util.List<DesignDocument> designDocuments = bucketManager.getDesignDocuments();
@@ -91,7 +90,7 @@ public class ListDesignDocuments extends BasicFunction {
 
 
         } catch (final Throwable ex) {
-            return GenericExceptionHandler.handleException(this, ex);
+            return GenericExceptionHandler.handleException(this, ex, connection);
         }
 
     }
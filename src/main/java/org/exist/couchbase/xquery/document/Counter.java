@@ -0,0 +1,117 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.xquery.document;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonLongDocument;
+import org.exist.couchbase.shared.ConnectionStatistics.Operation;
+import org.exist.couchbase.shared.Constants;
+import org.exist.couchbase.shared.CouchbaseClusterConnection;
+import org.exist.couchbase.shared.CouchbaseClusterManager;
+import org.exist.couchbase.shared.GenericExceptionHandler;
+import org.exist.couchbase.xquery.CouchbaseModule;
+import org.exist.dom.QName;
+import org.exist.xquery.*;
+import org.exist.xquery.value.*;
+
+/**
+ * Atomically increment or decrement a counter document
+ *
+ * @author Dannes Wessels
+ */
+public class Counter extends BasicFunction {
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName("counter", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Atomically change an existing counter",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("documentName", Type.STRING, Cardinality.ONE, "Name of counter document"),
+                            new FunctionParameterSequenceType("delta", Type.LONG, Cardinality.ONE, "Value to add, negative to decrement"),},
+                    new FunctionReturnSequenceType(Type.LONG, Cardinality.ONE, "The new value of the counter.")
+            ),
+            new FunctionSignature(
+                    new QName("counter", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Atomically change a counter, the counter is created when it does not exist",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("documentName", Type.STRING, Cardinality.ONE, "Name of counter document"),
+                            new FunctionParameterSequenceType("delta", Type.LONG, Cardinality.ONE, "Value to add, negative to decrement"),
+                            new FunctionParameterSequenceType("initial", Type.LONG, Cardinality.ZERO_OR_ONE, "Value of a new counter, empty sequence when the counter must exist"),
+                            new FunctionParameterSequenceType("expiry", Type.INTEGER, Cardinality.ZERO_OR_ONE, "Expiry of a new counter (seconds), empty sequence for no expiry"),},
+                    new FunctionReturnSequenceType(Type.LONG, Cardinality.ONE, "The new value of the counter.")
+            ),};
+
+    public Counter(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        final CouchbaseClusterManager cmm = CouchbaseClusterManager.getInstance();
+
+        // Get connection details
+        final String clusterId = args[0].itemAt(0).getStringValue();
+
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
+
+        // Retrieve other parameters
+        final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
+
+        final String docName = args[2].itemAt(0).getStringValue();
+
+        final long delta = ((NumericValue) args[3].itemAt(0)).getLong();
+
+        final Long initial = (getArgumentCount() > 4 && !args[4].isEmpty()) ? ((NumericValue) args[4].itemAt(0)).getLong() : null;
+
+        final int expiry = (getArgumentCount() > 5 && !args[5].isEmpty()) ? ((NumericValue) args[5].itemAt(0)).getInt() : 0;
+
+        // Count invocation
+        connection.getStatistics().increase(Operation.COUNTER);
+
+        try {
+            // Get reference to bucket
+            final Bucket bucket = connection.getBucket(bucketName);
+
+            // Perform action
+            final JsonLongDocument result = (initial == null)
+                    ? bucket.counter(docName, delta)
+                    : bucket.counter(docName, delta, initial, expiry);
+            connection.invalidate(bucketName, docName);
+
+            // Return results
+            return new IntegerValue(result.content(), Type.LONG);
+
+        } catch (final Throwable ex) {
+            // The server may have applied the write
+            if (GenericExceptionHandler.isAmbiguous(ex)) {
+                connection.invalidate(bucketName, docName);
+            }
+            return GenericExceptionHandler.handleException(this, ex, connection);
+        }
+
+    }
+
+}
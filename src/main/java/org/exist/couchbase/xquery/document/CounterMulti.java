@@ -0,0 +1,163 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.xquery.document;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.document.JsonLongDocument;
+import org.exist.couchbase.shared.BulkOperation.Result;
+import org.exist.couchbase.shared.ConnectionStatistics.Operation;
+import org.exist.couchbase.shared.Constants;
+import org.exist.couchbase.shared.*;
+import org.exist.couchbase.xquery.CouchbaseModule;
+import org.exist.dom.QName;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.map.AbstractMapType;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.*;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Atomically change multiple counters, the requests are executed concurrently.
+ *
+ * @author Dannes Wessels
+ */
+public class CounterMulti extends BasicFunction {
+
+    private static final String DELTAS_DESCRIPTION = "Values to add (xs:integer), keyed by name of counter document";
+    private static final String RETURN_DESCRIPTION = "Per document name the new value of the counter (xs:long), "
+            + "or the error code (xs:string) when the change failed.";
+    private static final String PARAMETERS_DESCRIPTION = "Parameters: 'concurrency' (maximum number of concurrent changes, default 32) and "
+            + "'timeout' (milliseconds per counter, default the key/value timeout of the environment)";
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName("counter-multi", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Atomically change existing counters",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("deltas", Type.MAP, Cardinality.ONE, DELTAS_DESCRIPTION),},
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ONE, RETURN_DESCRIPTION)
+            ),
+            new FunctionSignature(
+                    new QName("counter-multi", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Atomically change counters, counters are created when they do not exist",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("deltas", Type.MAP, Cardinality.ONE, DELTAS_DESCRIPTION),
+                            new FunctionParameterSequenceType("initial", Type.LONG, Cardinality.ZERO_OR_ONE, "Value of new counters, empty sequence when the counters must exist"),
+                            new FunctionParameterSequenceType("expiry", Type.INTEGER, Cardinality.ZERO_OR_ONE, "Expiry of new counters (seconds), empty sequence for no expiry"),},
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ONE, RETURN_DESCRIPTION)
+            ),
+            new FunctionSignature(
+                    new QName("counter-multi", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Atomically change counters, counters are created when they do not exist",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("deltas", Type.MAP, Cardinality.ONE, DELTAS_DESCRIPTION),
+                            new FunctionParameterSequenceType("initial", Type.LONG, Cardinality.ZERO_OR_ONE, "Value of new counters, empty sequence when the counters must exist"),
+                            new FunctionParameterSequenceType("expiry", Type.INTEGER, Cardinality.ZERO_OR_ONE, "Expiry of new counters (seconds), empty sequence for no expiry"),
+                            new FunctionParameterSequenceType("parameters", Type.MAP, Cardinality.ZERO_OR_ONE, PARAMETERS_DESCRIPTION),},
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ONE, RETURN_DESCRIPTION)
+            ),};
+
+    public CounterMulti(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        final CouchbaseClusterManager cmm = CouchbaseClusterManager.getInstance();
+
+        // Get connection details
+        final String clusterId = args[0].itemAt(0).getStringValue();
+
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
+
+        // Retrieve other parameters
+        final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
+
+        final AbstractMapType deltaMap = (AbstractMapType) args[2].itemAt(0);
+
+        final Long initial = (getArgumentCount() > 3 && !args[3].isEmpty()) ? ((NumericValue) args[3].itemAt(0)).getLong() : null;
+
+        final int expiry = (getArgumentCount() > 4 && !args[4].isEmpty()) ? ((NumericValue) args[4].itemAt(0)).getInt() : 0;
+
+        final Map<String, Object> parameters = (getArgumentCount() > 5 && !args[5].isEmpty())
+                ? ConversionTools.convert((AbstractMapType) args[5].itemAt(0))
+                : Collections.emptyMap();
+
+        // Count invocations
+        connection.getStatistics().increase(Operation.COUNTER, deltaMap.size());
+
+        try {
+            // Prepare input
+            final Map<String, Long> deltas = new LinkedHashMap<>();
+            for (final SequenceIterator i = deltaMap.keys().iterate(); i.hasNext(); ) {
+                final AtomicValue key = (AtomicValue) i.nextItem();
+                final Sequence delta = deltaMap.get(key);
+                if (delta.getItemCount() != 1 || !Type.subTypeOf(delta.getItemType(), Type.INTEGER)) {
+                    throw new IllegalArgumentException(String.format("Delta of '%s' is not an integer value (%s)", key.getStringValue(), delta.getStringValue()));
+                }
+                deltas.put(key.getStringValue(), ((NumericValue) delta.itemAt(0)).getLong());
+            }
+
+            final AsyncBucket bucket = connection.getBucket(bucketName).async();
+
+            final int concurrency = ConversionTools.getIntegerValue(GetMulti.CONCURRENCY, parameters.get(GetMulti.CONCURRENCY), BulkOperation.DEFAULT_CONCURRENCY);
+            final long timeout = ConversionTools.getLongValue(GetMulti.TIMEOUT, parameters.get(GetMulti.TIMEOUT), bucket.environment().kvTimeout());
+
+            // Perform action
+            final List<Result<JsonLongDocument>> results = BulkOperation.execute(deltas.keySet(),
+                    docName -> (initial == null)
+                            ? bucket.counter(docName, deltas.get(docName))
+                            : bucket.counter(docName, deltas.get(docName), initial, expiry),
+                    concurrency, timeout);
+            deltas.keySet().forEach(docName -> connection.invalidate(bucketName, docName));
+
+            // Return new values and error codes
+            final MapType retVal = new MapType(context);
+            for (final Result<JsonLongDocument> result : results) {
+                if (result.isFailed()) {
+                    final String errorCode = GenericExceptionHandler.getErrorCode(result.getError()).getErrorQName().getLocalPart();
+                    connection.getStatistics().increaseErrors(errorCode);
+                    retVal.add(new StringValue(result.getKey()), new StringValue(errorCode));
+
+                } else {
+                    retVal.add(new StringValue(result.getKey()), new IntegerValue(result.getValue().content(), Type.LONG));
+                }
+            }
+            return retVal;
+
+        } catch (final Throwable ex) {
+            return GenericExceptionHandler.handleException(this, ex, connection);
+        }
+
+    }
+
+}
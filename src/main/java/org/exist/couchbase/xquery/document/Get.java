@@ -19,14 +19,22 @@
  */
 package org.exist.couchbase.xquery.document;
 
-import com.couchbase.client.java.CouchbaseCluster;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.ReplicaMode;
 import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.RawJsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.subdoc.DocumentFragment;
+import com.couchbase.client.java.subdoc.SubdocOptionsBuilder;
+import org.exist.couchbase.shared.ConnectionStatistics.Operation;
 import org.exist.couchbase.shared.Constants;
 import org.exist.couchbase.shared.*;
 import org.exist.couchbase.xquery.CouchbaseModule;
 import org.exist.dom.QName;
 import org.exist.xquery.*;
 import org.exist.xquery.functions.map.AbstractMapType;
+import org.exist.xquery.functions.map.MapType;
 import org.exist.xquery.value.*;
 
 import java.util.Locale;
@@ -40,6 +48,18 @@ import java.util.concurrent.TimeUnit;
  */
 public class Get extends BasicFunction {
 
+    public static final String TIMEOUT = "timeout";
+    public static final String TIME_UNIT = "timeUnit";
+    public static final String REPLICA = "replica";
+
+    private static final String CONTENT = "content";
+    private static final String POSSIBLY_STALE = "possibly-stale";
+
+    /**
+     * Virtual extended attribute, available for every document
+     */
+    private static final String CAS_XATTR = "$document.CAS";
+
     public final static FunctionSignature signatures[] = {
             new FunctionSignature(
                     new QName("get", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
@@ -57,7 +77,10 @@ public class Get extends BasicFunction {
                             new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
                             new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
                             new FunctionParameterSequenceType("documentName", Type.STRING, Cardinality.ONE, "Name of document"),
-                            new FunctionParameterSequenceType("parameters", Type.MAP, Cardinality.ZERO_OR_ONE, "Query parameters")
+                            new FunctionParameterSequenceType("parameters", Type.MAP, Cardinality.ZERO_OR_ONE,
+                                    "Query parameters: 'timeout', 'timeUnit' (default MILLISECONDS) and 'replica'. With 'replica' set to "
+                                            + "'all' the active copy and all replicas are read and the first response wins, with 'first' "
+                                            + "only the first replica is read. A replica read returns map { 'content' : the document, 'possibly-stale' : true() }.")
                     },
                     new FunctionReturnSequenceType(Type.MAP, Cardinality.ZERO_OR_ONE, "The Json document, or Empty sequence when not found.")
             ),};
@@ -74,51 +97,190 @@ public class Get extends BasicFunction {
         // Get connection details
         final String clusterId = args[0].itemAt(0).getStringValue();
 
-        // Get reference to cluster
-        final CouchbaseCluster cluster = cmm.validate(clusterId);
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
 
         // Retrieve other parameters             
         final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
-        final String bucketPassword = cmm.getBucketPassword(clusterId);
 
         final String docName = args[2].itemAt(0).getStringValue();
 
-        final Map<String, Object> parameters = (getArgumentCount() > 3)
+        final Map<String, Object> parameters = (getArgumentCount() > 3 && !args[3].isEmpty())
                 ? ConversionTools.convert((AbstractMapType) args[3].itemAt(0))
                 : null;
 
+        // Count invocation
+        connection.getStatistics().increase(Operation.GET);
+
         try {
-            // Perform action
-            final JsonDocument result = (parameters == null)
-                    ? get(cluster, bucketName, bucketPassword, docName)
-                    : get(cluster, bucketName, bucketPassword, docName, parameters);
+            final ReplicaMode replicaMode = (parameters == null) ? null : getReplicaMode(parameters);
+
+            // Get reference to bucket
+            final Bucket bucket = connection.getBucket(bucketName);
+
+            // Perform action, replica reads bypass the cache
+            final JsonObject result;
+            if (replicaMode == null) {
+                // Recently found absent
+                final NegativeCache negativeCache = connection.getNegativeCache();
+                if (negativeCache != null && negativeCache.isAbsent(bucketName, docName)) {
+                    return EmptySequence.EMPTY_SEQUENCE;
+                }
+
+                // Concurrent retrievals of the document share one request
+                final NearCache nearCache = connection.getNearCache();
+                result = connection.getGetCoalescer().execute(bucketName, docName, getTimeout(bucket, parameters), TimeUnit.NANOSECONDS, () -> {
+                    // Version before the retrieval, a write during the retrieval is detected
+                    final long version = (negativeCache == null) ? 0L : negativeCache.getVersion(bucketName, docName);
+
+                    final JsonObject content;
+                    if (nearCache != null) {
+                        content = getCached(nearCache, bucket, bucketName, docName, parameters);
+                    } else {
+                        final JsonDocument document = get(bucket, docName, parameters, null);
+                        content = (document == null) ? null : document.content();
+                    }
+
+                    if (content == null && negativeCache != null) {
+                        negativeCache.putAbsent(bucketName, docName, version);
+                    }
+                    return content;
+                });
+
+            } else {
+                final JsonDocument document = get(bucket, docName, parameters, replicaMode);
+                result = (document == null) ? null : document.content();
+            }
 
             if (result == null) {
                 return EmptySequence.EMPTY_SEQUENCE;
             }
 
             // Return results
-            return JsonToMap.convert(result.content(), context);
+            final MapType content = JsonToMap.convert(result, context);
+            return (replicaMode == null) ? content : wrapReplicaResult(content, context);
 
         } catch (final Throwable ex) {
-            return GenericExceptionHandler.handleException(this, ex);
+            return GenericExceptionHandler.handleException(this, ex, connection);
         }
 
     }
 
-    /* Retrieve document */
-    private JsonDocument get(final CouchbaseCluster cluster, final String bucketName, final String bucketPassword, final String docName) {
-        return cluster.openBucket(bucketName, bucketPassword).get(docName);
+    /**
+     * Retrieve documents with additional parameters
+     */
+    private JsonDocument get(final Bucket bucket, final String docName, final Map<String, Object> parameters, final ReplicaMode replicaMode) {
+
+        final long timeout = getTimeout(bucket, parameters);
+
+        if (replicaMode == null) {
+            return bucket.get(docName, timeout, TimeUnit.NANOSECONDS);
+        }
+
+        // First response wins
+        return bucket.async().getFromReplica(docName, replicaMode)
+                .firstOrDefault(null)
+                .timeout(timeout, TimeUnit.NANOSECONDS)
+                .toBlocking()
+                .single();
     }
 
     /**
-     * Retrieve documents with additional parameters
+     * Retrieve document through the near cache of the connection. An expired entry is kept
+     * when the CAS value of the document has not been changed.
+     */
+    private JsonObject getCached(final NearCache nearCache, final Bucket bucket, final String bucketName, final String docName,
+                                 final Map<String, Object> parameters) throws Exception {
+
+        final NearCache.Entry entry = nearCache.get(bucketName, docName);
+        if (entry != null && !entry.isExpired()) {
+            return entry.getContent();
+        }
+
+        final long timeout = getTimeout(bucket, parameters);
+
+        // Version before the retrieval, a write during the retrieval is detected
+        final long version = nearCache.getVersion(bucketName, docName);
+
+        if (entry != null) {
+            try {
+                // Only the CAS value is transferred
+                final DocumentFragment<?> fragment = bucket.lookupIn(docName)
+                        .exists(CAS_XATTR, new SubdocOptionsBuilder().xattr(true))
+                        .execute(timeout, TimeUnit.NANOSECONDS);
+
+                if (nearCache.revalidate(bucketName, docName, entry, fragment.cas())) {
+                    return entry.getContent();
+                }
+
+            } catch (final DocumentDoesNotExistException ex) {
+                nearCache.invalidate(bucketName, docName);
+                return null;
+            }
+        }
+
+        // The Json text is retrieved to determine the size of the entry
+        final RawJsonDocument document = bucket.get(docName, RawJsonDocument.class, timeout, TimeUnit.NANOSECONDS);
+        if (document == null) {
+            return null;
+        }
+
+        final JsonObject content = ConversionTools.convert(document.content());
+        nearCache.put(bucketName, docName, content, document.cas(), document.content().length(), version);
+        return content;
+    }
+
+    /**
+     * Get the timeout of the 'timeout' and 'timeUnit' parameters.
+     *
+     * @param bucket     The bucket, provides the default timeout
+     * @param parameters The parameters, can be NULL
+     * @return The timeout in nanoseconds
+     */
+    private static long getTimeout(final Bucket bucket, final Map<String, Object> parameters) {
+        if (parameters != null && parameters.containsKey(TIMEOUT)) {
+            final long timeout = ConversionTools.getLongValue(TIMEOUT, parameters.get(TIMEOUT), 0);
+            final TimeUnit timeUnit = TimeUnit.valueOf(ConversionTools.getStringValue(TIME_UNIT, parameters.get(TIME_UNIT), "MILLISECONDS").toUpperCase(Locale.US));
+            return timeUnit.toNanos(timeout);
+        }
+        return TimeUnit.MILLISECONDS.toNanos(bucket.environment().kvTimeout());
+    }
+
+    /**
+     * Get the replica mode of the 'replica' parameter.
+     *
+     * @param parameters The parameters
+     * @return The replica mode, NULL when the active copy must be read.
      */
-    private JsonDocument get(final CouchbaseCluster cluster, final String bucketName, final String docName, final String bucketPassword, final Map<String, Object> parameters) {
-        final long timeout = ConversionTools.getLongValue("timeout", parameters.get("timeout"));
-        final TimeUnit timeUnit = TimeUnit.valueOf(parameters.get("timeUnit").toString().toUpperCase(Locale.US));
+    static ReplicaMode getReplicaMode(final Map<String, Object> parameters) {
+        final String replica = ConversionTools.getStringValue(REPLICA, parameters.get(REPLICA), null);
+        if (replica == null) {
+            return null;
+        }
+
+        switch (replica.toLowerCase(Locale.US)) {
+            case "all":
+                return ReplicaMode.ALL;
+            case "first":
+                return ReplicaMode.FIRST;
+            default:
+                throw new IllegalArgumentException(String.format("'%s' is not a valid replica mode, use 'all' or 'first'.", replica));
+        }
+    }
 
-        return cluster.openBucket(bucketName, bucketPassword).get(docName, timeout, timeUnit);
+    /**
+     * A document read from a replica is not guaranteed to be up to date.
+     *
+     * @param content The document
+     * @param context XQuery context
+     * @return map { 'content' : document, 'possibly-stale' : true() }
+     * @throws XPathException The map could not be created.
+     */
+    static MapType wrapReplicaResult(final Sequence content, final XQueryContext context) throws XPathException {
+        final MapType retVal = new MapType(context);
+        retVal.add(new StringValue(CONTENT), content);
+        retVal.add(new StringValue(POSSIBLY_STALE), BooleanValue.TRUE);
+        return retVal;
     }
 
 }
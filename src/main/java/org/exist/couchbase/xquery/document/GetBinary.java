@@ -0,0 +1,101 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.xquery.document;
+
+import com.couchbase.client.java.document.BinaryDocument;
+import org.exist.couchbase.shared.ByteBufTools;
+import org.exist.couchbase.shared.ConnectionStatistics.Operation;
+import org.exist.couchbase.shared.Constants;
+import org.exist.couchbase.shared.CouchbaseClusterConnection;
+import org.exist.couchbase.shared.CouchbaseClusterManager;
+import org.exist.couchbase.shared.GenericExceptionHandler;
+import org.exist.couchbase.xquery.CouchbaseModule;
+import org.exist.dom.QName;
+import org.exist.xquery.*;
+import org.exist.xquery.value.*;
+
+import java.io.InputStream;
+
+/**
+ * Retrieve binary document
+ *
+ * @author Dannes Wessels
+ */
+public class GetBinary extends BasicFunction {
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName("get-binary", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Retrieve binary document from bucket",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("documentName", Type.STRING, Cardinality.ONE, "Name of document"),},
+                    new FunctionReturnSequenceType(Type.BASE64_BINARY, Cardinality.ZERO_OR_ONE, "The binary document, or Empty sequence when not found.")
+            ),};
+
+    public GetBinary(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        final CouchbaseClusterManager cmm = CouchbaseClusterManager.getInstance();
+
+        // Get connection details
+        final String clusterId = args[0].itemAt(0).getStringValue();
+
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
+
+        // Retrieve other parameters
+        final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
+
+        final String docName = args[2].itemAt(0).getStringValue();
+
+        // Count invocation
+        connection.getStatistics().increase(Operation.GET);
+
+        try {
+            // Perform action
+            final BinaryDocument result = connection.getBucket(bucketName).get(docName, BinaryDocument.class);
+
+            if (result == null) {
+                return EmptySequence.EMPTY_SEQUENCE;
+            }
+
+            // The buffer is read by eXist-db and released when the binary value is closed at the end of the query
+            final InputStream is = ByteBufTools.toInputStream(result.content());
+            try {
+                return BinaryValueFromInputStream.getInstance(context, new Base64BinaryValueType(), is);
+
+            } catch (final XPathException | RuntimeException ex) {
+                is.close();
+                throw ex;
+            }
+
+        } catch (final Throwable ex) {
+            return GenericExceptionHandler.handleException(this, ex, connection);
+        }
+
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.xquery.document;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.ReplicaMode;
+import com.couchbase.client.java.document.JsonDocument;
+import org.exist.couchbase.shared.BulkOperation.Result;
+import org.exist.couchbase.shared.ConnectionStatistics.Operation;
+import org.exist.couchbase.shared.Constants;
+import org.exist.couchbase.shared.*;
+import org.exist.couchbase.xquery.CouchbaseModule;
+import org.exist.dom.QName;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.map.AbstractMapType;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.*;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Retrieve multiple documents, the requests are executed concurrently.
+ *
+ * @author Dannes Wessels
+ */
+public class GetMulti extends BasicFunction {
+
+    public static final String CONCURRENCY = "concurrency";
+    public static final String TIMEOUT = Get.TIMEOUT;
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName("get-multi", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Retrieve documents from bucket",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("documentNames", Type.STRING, Cardinality.ZERO_OR_MORE, "Names of documents"),},
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ONE, "The Json documents keyed by document name, documents that are not found are omitted.")
+            ),
+            new FunctionSignature(
+                    new QName("get-multi", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Retrieve documents from bucket",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("documentNames", Type.STRING, Cardinality.ZERO_OR_MORE, "Names of documents"),
+                            new FunctionParameterSequenceType("parameters", Type.MAP, Cardinality.ZERO_OR_ONE,
+                                    "Parameters: 'concurrency' (maximum number of concurrent requests, default 32), "
+                                            + "'timeout' (milliseconds per document, default the key/value timeout of the environment) and "
+                                            + "'replica' ('all' or 'first', see couchbase:get)")
+                    },
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ONE, "The Json documents keyed by document name, documents that are not found are omitted.")
+            ),};
+
+    public GetMulti(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        final CouchbaseClusterManager cmm = CouchbaseClusterManager.getInstance();
+
+        // Get connection details
+        final String clusterId = args[0].itemAt(0).getStringValue();
+
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
+
+        // Retrieve other parameters
+        final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
+
+        // Duplicates are retrieved once
+        final Set<String> docNames = new LinkedHashSet<>(ConversionTools.getStringValues(args[2]));
+
+        final Map<String, Object> parameters = (getArgumentCount() > 3 && !args[3].isEmpty())
+                ? ConversionTools.convert((AbstractMapType) args[3].itemAt(0))
+                : Collections.emptyMap();
+
+        // Count invocations
+        connection.getStatistics().increase(Operation.GET, docNames.size());
+
+        try {
+            // Get reference to bucket
+            final Bucket bucket = connection.getBucket(bucketName);
+
+            final int concurrency = ConversionTools.getIntegerValue(CONCURRENCY, parameters.get(CONCURRENCY), BulkOperation.DEFAULT_CONCURRENCY);
+            final long timeout = ConversionTools.getLongValue(TIMEOUT, parameters.get(TIMEOUT), bucket.environment().kvTimeout());
+            final ReplicaMode replicaMode = Get.getReplicaMode(parameters);
+
+            // Perform action, for replica reads the first response wins
+            final List<Result<JsonDocument>> results = BulkOperation.execute(docNames,
+                    docName -> (replicaMode == null)
+                            ? bucket.async().get(docName)
+                            : bucket.async().getFromReplica(docName, replicaMode).take(1),
+                    concurrency, timeout);
+
+            // Return results
+            final MapType retVal = new MapType(context);
+            for (final Result<JsonDocument> result : results) {
+                if (result.isFailed()) {
+                    throw result.getError();
+                }
+                if (result.getValue() != null) {
+                    final MapType content = JsonToMap.convert(result.getValue().content(), context);
+                    retVal.add(new StringValue(result.getKey()), (replicaMode == null) ? content : Get.wrapReplicaResult(content, context));
+                }
+            }
+            return retVal;
+
+        } catch (final Throwable ex) {
+            return GenericExceptionHandler.handleException(this, ex, connection);
+        }
+
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.xquery.document;
+
+import com.couchbase.client.core.message.ResponseStatus;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.subdoc.DocumentFragment;
+import com.couchbase.client.java.subdoc.LookupInBuilder;
+import org.exist.couchbase.shared.ConnectionStatistics.Operation;
+import org.exist.couchbase.shared.Constants;
+import org.exist.couchbase.shared.*;
+import org.exist.couchbase.xquery.CouchbaseModule;
+import org.exist.dom.QName;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.*;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Retrieve selected paths of a document with the sub-document API
+ *
+ * @author Dannes Wessels
+ */
+public class Lookup extends BasicFunction {
+
+    private static final String RETURN_DESCRIPTION = "The values keyed by path, paths that are not found are omitted. "
+            + "For the exists paths the value is a boolean. Empty sequence when the document is not found.";
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName("lookup", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Retrieve paths of a document from bucket",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("documentName", Type.STRING, Cardinality.ONE, "Name of document"),
+                            new FunctionParameterSequenceType("paths", Type.STRING, Cardinality.ZERO_OR_MORE, "Paths to retrieve, e.g. 'address.city'"),},
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ZERO_OR_ONE, RETURN_DESCRIPTION)
+            ),
+            new FunctionSignature(
+                    new QName("lookup", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Retrieve paths of a document from bucket, and check if paths exist",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("documentName", Type.STRING, Cardinality.ONE, "Name of document"),
+                            new FunctionParameterSequenceType("paths", Type.STRING, Cardinality.ZERO_OR_MORE, "Paths to retrieve, e.g. 'address.city'"),
+                            new FunctionParameterSequenceType("existsPaths", Type.STRING, Cardinality.ZERO_OR_MORE, "Paths to check, the values are not retrieved"),},
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ZERO_OR_ONE, RETURN_DESCRIPTION)
+            ),};
+
+    public Lookup(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        final CouchbaseClusterManager cmm = CouchbaseClusterManager.getInstance();
+
+        // Get connection details
+        final String clusterId = args[0].itemAt(0).getStringValue();
+
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
+
+        // Retrieve other parameters
+        final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
+
+        final String docName = args[2].itemAt(0).getStringValue();
+
+        final List<String> paths = ConversionTools.getStringValues(args[3]);
+
+        final List<String> existsPaths = (getArgumentCount() > 4)
+                ? ConversionTools.getStringValues(args[4])
+                : Collections.emptyList();
+
+        if (paths.isEmpty() && existsPaths.isEmpty()) {
+            throw new XPathException(this, CouchbaseModule.COBA0002, "At least one path is required.");
+        }
+
+        // Count invocation
+        connection.getStatistics().increase(Operation.LOOKUP);
+
+        try {
+            // Prepare lookup, all paths in one request
+            final LookupInBuilder builder = connection.getBucket(bucketName).lookupIn(docName);
+            paths.forEach(builder::get);
+            existsPaths.forEach(builder::exists);
+
+            // Perform action
+            final DocumentFragment<com.couchbase.client.core.message.kv.subdoc.multi.Lookup> result = builder.execute();
+
+            // Return results, in the order of the specs
+            final MapType retVal = new MapType(context);
+            for (int i = 0; i < result.size(); i++) {
+                final boolean isFound = result.status(i) == ResponseStatus.SUCCESS;
+
+                if (i >= paths.size()) {
+                    retVal.add(new StringValue(existsPaths.get(i - paths.size())), BooleanValue.valueOf(isFound));
+
+                } else if (isFound) {
+                    retVal.add(new StringValue(paths.get(i)), JsonToMap.convertValue(result.content(i), context));
+                }
+            }
+            return retVal;
+
+        } catch (final DocumentDoesNotExistException ex) {
+            return EmptySequence.EMPTY_SEQUENCE;
+
+        } catch (final Throwable ex) {
+            return GenericExceptionHandler.handleException(this, ex, connection);
+        }
+
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.xquery.document;
+
+import com.couchbase.client.java.subdoc.MutateInBuilder;
+import com.couchbase.client.java.subdoc.SubdocOptionsBuilder;
+import org.exist.couchbase.shared.ConnectionStatistics.Operation;
+import org.exist.couchbase.shared.Constants;
+import org.exist.couchbase.shared.*;
+import org.exist.couchbase.xquery.CouchbaseModule;
+import org.exist.dom.QName;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.map.AbstractMapType;
+import org.exist.xquery.value.*;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Modify paths of a document in place with the sub-document API
+ *
+ * @author Dannes Wessels
+ */
+public class Mutate extends BasicFunction {
+
+    private static final String OP = "op";
+    private static final String PATH = "path";
+    private static final String VALUE = "value";
+    private static final String CREATE_PATH = "createPath";
+
+    private static final String CAS = "cas";
+    private static final String EXPIRY = "expiry";
+
+    private static final String OPERATIONS_DESCRIPTION = "The operations, e.g. map { 'op' : 'upsert', 'path' : 'address.city', 'value' : 'Amsterdam', 'createPath' : true() }. "
+            + "Supported operations are 'upsert', 'insert', 'replace', 'remove', 'array-append', 'array-add-unique' and 'counter' (the value is the delta).";
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName("mutate", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Modify paths of a document, all operations are applied atomically",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("documentName", Type.STRING, Cardinality.ONE, "Name of document"),
+                            new FunctionParameterSequenceType("operations", Type.MAP, Cardinality.ONE_OR_MORE, OPERATIONS_DESCRIPTION),},
+                    new FunctionReturnSequenceType(Type.INTEGER, Cardinality.ONE, "The CAS value of the modified document.")
+            ),
+            new FunctionSignature(
+                    new QName("mutate", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Modify paths of a document, all operations are applied atomically",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("documentName", Type.STRING, Cardinality.ONE, "Name of document"),
+                            new FunctionParameterSequenceType("operations", Type.MAP, Cardinality.ONE_OR_MORE, OPERATIONS_DESCRIPTION),
+                            new FunctionParameterSequenceType("options", Type.MAP, Cardinality.ZERO_OR_ONE,
+                                    "Options: 'cas' (the document is only modified when the CAS value matches) and 'expiry' (seconds)"),},
+                    new FunctionReturnSequenceType(Type.INTEGER, Cardinality.ONE, "The CAS value of the modified document.")
+            ),};
+
+    public Mutate(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        final CouchbaseClusterManager cmm = CouchbaseClusterManager.getInstance();
+
+        // Get connection details
+        final String clusterId = args[0].itemAt(0).getStringValue();
+
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
+
+        // Retrieve other parameters
+        final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
+
+        final String docName = args[2].itemAt(0).getStringValue();
+
+        final AbstractMapType options = (getArgumentCount() > 4 && !args[4].isEmpty())
+                ? (AbstractMapType) args[4].itemAt(0)
+                : null;
+
+        // Count invocation
+        connection.getStatistics().increase(Operation.MUTATE);
+
+        try {
+            // Prepare mutations, all operations in one request
+            final MutateInBuilder builder = connection.getBucket(bucketName).mutateIn(docName);
+
+            for (final SequenceIterator i = args[3].iterate(); i.hasNext(); ) {
+                addOperation(builder, (AbstractMapType) i.nextItem());
+            }
+
+            if (options != null) {
+                final Sequence cas = options.get(new StringValue(CAS));
+                if (cas != null && !cas.isEmpty()) {
+                    builder.withCas(getLongValue(CAS, cas));
+                }
+
+                final Sequence expiry = options.get(new StringValue(EXPIRY));
+                if (expiry != null && !expiry.isEmpty()) {
+                    builder.withExpiry((int) getLongValue(EXPIRY, expiry));
+                }
+            }
+
+            // Perform action, return CAS only
+            final long cas = builder.execute().cas();
+            connection.invalidate(bucketName, docName);
+            return new IntegerValue(cas);
+
+        } catch (final Throwable ex) {
+            // The server may have applied the write
+            if (GenericExceptionHandler.isAmbiguous(ex)) {
+                connection.invalidate(bucketName, docName);
+            }
+            return GenericExceptionHandler.handleException(this, ex, connection);
+        }
+
+    }
+
+    /**
+     * Add the operation described by the map to the builder.
+     */
+    private void addOperation(final MutateInBuilder builder, final AbstractMapType operation) throws XPathException {
+
+        final Map<String, Object> parameters = ConversionTools.convert(operation, Collections.singleton(VALUE));
+
+        final String op = ConversionTools.getStringValue(OP, parameters.get(OP), null);
+        final String path = ConversionTools.getStringValue(PATH, parameters.get(PATH), null);
+        if (op == null || path == null) {
+            throw new IllegalArgumentException(String.format("Operation requires '%s' and '%s'.", OP, PATH));
+        }
+
+        final SubdocOptionsBuilder subdocOptions = SubdocOptionsBuilder.builder()
+                .createPath(ConversionTools.getBooleanValue(CREATE_PATH, parameters.get(CREATE_PATH), false));
+
+        final Sequence value = operation.get(new StringValue(VALUE));
+        if (value == null && !"remove".equals(op.toLowerCase(Locale.US))) {
+            throw new IllegalArgumentException(String.format("Operation '%s' on '%s' requires '%s'.", op, path, VALUE));
+        }
+
+        switch (op.toLowerCase(Locale.US)) {
+            case "upsert":
+                builder.upsert(path, MapToJson.convertValue(value), subdocOptions);
+                break;
+            case "insert":
+                builder.insert(path, MapToJson.convertValue(value), subdocOptions);
+                break;
+            case "replace":
+                builder.replace(path, MapToJson.convertValue(value));
+                break;
+            case "remove":
+                builder.remove(path);
+                break;
+            case "array-append":
+                builder.arrayAppend(path, MapToJson.convertValue(value), subdocOptions);
+                break;
+            case "array-add-unique":
+                builder.arrayAddUnique(path, MapToJson.convertValue(value), subdocOptions);
+                break;
+            case "counter":
+                builder.counter(path, getLongValue(VALUE, value), subdocOptions);
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("'%s' is not a valid operation.", op));
+        }
+    }
+
+    /**
+     * Get a long value, the conversion of maps is limited to integers.
+     */
+    private static long getLongValue(final String key, final Sequence value) throws XPathException {
+        if (value.getItemCount() != 1 || !Type.subTypeOf(value.getItemType(), Type.INTEGER)) {
+            throw new IllegalArgumentException(String.format("'%s' is not an integer value (%s)", key, value.getStringValue()));
+        }
+        return ((IntegerValue) value.itemAt(0)).getLong();
+    }
+
+}
@@ -20,9 +20,10 @@
 package org.exist.couchbase.xquery.document;
 
 
-import com.couchbase.client.java.CouchbaseCluster;
 import com.couchbase.client.java.document.JsonDocument;
+import org.exist.couchbase.shared.ConnectionStatistics.Operation;
 import org.exist.couchbase.shared.Constants;
+import org.exist.couchbase.shared.CouchbaseClusterConnection;
 import org.exist.couchbase.shared.CouchbaseClusterManager;
 import org.exist.couchbase.shared.GenericExceptionHandler;
 import org.exist.couchbase.shared.JsonToMap;
@@ -64,19 +65,22 @@ public class Remove extends BasicFunction {
         // Get connection details
         final String clusterId = args[0].itemAt(0).getStringValue();
 
-        // Get reference to cluster
-        final CouchbaseCluster cluster = cmm.validate(clusterId);
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
 
         // Retrieve other parameters             
         final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
-        final String bucketPassword = cmm.getBucketPassword(clusterId);
 
         final String docName = args[2].itemAt(0).getStringValue();
 
 
+        // Count invocation
+        connection.getStatistics().increase(Operation.REMOVE);
+
         try {
             // Perform action
-            final JsonDocument result = cluster.openBucket(bucketName, bucketPassword).remove(docName);
+            final JsonDocument result = connection.getBucket(bucketName).remove(docName);
+            connection.invalidate(bucketName, docName);
 
             if (result == null) {
                 return EmptySequence.EMPTY_SEQUENCE;
@@ -86,7 +90,11 @@ public class Remove extends BasicFunction {
             return JsonToMap.convert(result.content(), context);
 
         } catch (final Throwable ex) {
-            return GenericExceptionHandler.handleException(this, ex);
+            // The server may have applied the write
+            if (GenericExceptionHandler.isAmbiguous(ex)) {
+                connection.invalidate(bucketName, docName);
+            }
+            return GenericExceptionHandler.handleException(this, ex, connection);
         }
 
     }
@@ -0,0 +1,151 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.xquery.document;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import org.exist.couchbase.shared.BulkOperation.Result;
+import org.exist.couchbase.shared.ConnectionStatistics.Operation;
+import org.exist.couchbase.shared.Constants;
+import org.exist.couchbase.shared.*;
+import org.exist.couchbase.xquery.CouchbaseModule;
+import org.exist.dom.QName;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.map.AbstractMapType;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.*;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remove multiple documents, the removals are executed concurrently.
+ *
+ * @author Dannes Wessels
+ */
+public class RemoveMulti extends BasicFunction {
+
+    private static final String REMOVED = "removed";
+    private static final String MISSING = "missing";
+    private static final String FAILED = "failed";
+
+    private static final String RETURN_DESCRIPTION = "Map with the names of the removed documents ('removed'), the documents that "
+            + "did not exist ('missing') and the error codes of the failed removals keyed by document name ('failed').";
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName("remove-multi", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Remove documents from bucket",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("documentNames", Type.STRING, Cardinality.ZERO_OR_MORE, "Names of documents"),
+                    },
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ONE, RETURN_DESCRIPTION)
+            ),
+            new FunctionSignature(
+                    new QName("remove-multi", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Remove documents from bucket",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("documentNames", Type.STRING, Cardinality.ZERO_OR_MORE, "Names of documents"),
+                            new FunctionParameterSequenceType("parameters", Type.MAP, Cardinality.ZERO_OR_ONE,
+                                    "Parameters: 'concurrency' (maximum number of concurrent removals, default 32) and "
+                                            + "'timeout' (milliseconds per document, default the key/value timeout of the environment)"),
+                    },
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.ONE, RETURN_DESCRIPTION)
+            ),
+    };
+
+    public RemoveMulti(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        final CouchbaseClusterManager cmm = CouchbaseClusterManager.getInstance();
+
+        // Get connection details
+        final String clusterId = args[0].itemAt(0).getStringValue();
+
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
+
+        // Retrieve other parameters
+        final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
+
+        // Duplicates are removed once
+        final Set<String> docNames = new LinkedHashSet<>(ConversionTools.getStringValues(args[2]));
+
+        final Map<String, Object> parameters = (getArgumentCount() > 3 && !args[3].isEmpty())
+                ? ConversionTools.convert((AbstractMapType) args[3].itemAt(0))
+                : Collections.emptyMap();
+
+        // Count invocations
+        connection.getStatistics().increase(Operation.REMOVE, docNames.size());
+
+        try {
+            final AsyncBucket bucket = connection.getBucket(bucketName).async();
+
+            final int concurrency = ConversionTools.getIntegerValue(GetMulti.CONCURRENCY, parameters.get(GetMulti.CONCURRENCY), BulkOperation.DEFAULT_CONCURRENCY);
+            final long timeout = ConversionTools.getLongValue(GetMulti.TIMEOUT, parameters.get(GetMulti.TIMEOUT), bucket.environment().kvTimeout());
+
+            // Perform action, the removed documents are not converted
+            final List<Result<JsonDocument>> results = BulkOperation.execute(docNames, docName -> bucket.remove(docName), concurrency, timeout);
+            docNames.forEach(docName -> connection.invalidate(bucketName, docName));
+
+            // Sort outcome
+            final ValueSequence removed = new ValueSequence();
+            final ValueSequence missing = new ValueSequence();
+            final MapType failed = new MapType(context);
+
+            for (final Result<JsonDocument> result : results) {
+                if (!result.isFailed()) {
+                    removed.add(new StringValue(result.getKey()));
+
+                } else if (result.getError() instanceof DocumentDoesNotExistException) {
+                    missing.add(new StringValue(result.getKey()));
+
+                } else {
+                    final String errorCode = GenericExceptionHandler.getErrorCode(result.getError()).getErrorQName().getLocalPart();
+                    connection.getStatistics().increaseErrors(errorCode);
+                    failed.add(new StringValue(result.getKey()), new StringValue(errorCode));
+                }
+            }
+
+            // Return results
+            final MapType retVal = new MapType(context);
+            retVal.add(new StringValue(REMOVED), removed);
+            retVal.add(new StringValue(MISSING), missing);
+            retVal.add(new StringValue(FAILED), failed);
+            return retVal;
+
+        } catch (final Throwable ex) {
+            return GenericExceptionHandler.handleException(this, ex, connection);
+        }
+
+    }
+}
@@ -19,16 +19,22 @@
  */
 package org.exist.couchbase.xquery.document;
 
-import com.couchbase.client.java.CouchbaseCluster;
+import com.couchbase.client.java.Bucket;
 import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.RawJsonDocument;
 import com.couchbase.client.java.document.json.JsonObject;
+import org.exist.couchbase.shared.ConnectionStatistics.Operation;
 import org.exist.couchbase.shared.Constants;
 import org.exist.couchbase.shared.*;
 import org.exist.couchbase.xquery.CouchbaseModule;
 import org.exist.dom.QName;
 import org.exist.xquery.*;
+import org.exist.xquery.functions.map.AbstractMapType;
 import org.exist.xquery.value.*;
 
+import java.util.Collections;
+import java.util.Map;
+
 /**
  * Upsert document into bucket
  *
@@ -39,6 +45,11 @@ public class Upsert extends BasicFunction {
     private static final String UPSERT = "upsert";
     private static final String INSERT = "insert";
 
+    private static final String RETURN_DOCUMENT = "returnDocument";
+
+    private static final String OPTIONS_DESCRIPTION = "Options: with 'returnDocument' set to false() only the metadata of the stored "
+            + "document is returned: map { 'id', 'cas', 'expiry', 'mutation-token' }. The mutation token is only available "
+            + "when 'mutationTokensEnabled' is set in the environment.";
 
     public final static FunctionSignature signatures[] = {
             new FunctionSignature(
@@ -66,6 +77,32 @@ public class Upsert extends BasicFunction {
                     },
                     new FunctionReturnSequenceType(Type.MAP, Cardinality.EXACTLY_ONE, "The new document.")
             ),
+
+            new FunctionSignature(
+                    new QName(UPSERT, CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Upsert document into database",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("documentName", Type.STRING, Cardinality.ONE, "Name of document"),
+                            new FunctionParameterSequenceType("payload", Type.ITEM, Cardinality.ONE, "Json document content"),
+                            new FunctionParameterSequenceType("options", Type.MAP, Cardinality.ZERO_OR_ONE, OPTIONS_DESCRIPTION),
+                    },
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.EXACTLY_ONE, "The new document, or its metadata.")
+            ),
+
+            new FunctionSignature(
+                    new QName(INSERT, CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Insert document into database",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("documentName", Type.STRING, Cardinality.ONE, "Name of document"),
+                            new FunctionParameterSequenceType("payload", Type.ITEM, Cardinality.ONE, "Json document content"),
+                            new FunctionParameterSequenceType("options", Type.MAP, Cardinality.ZERO_OR_ONE, OPTIONS_DESCRIPTION),
+                    },
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.EXACTLY_ONE, "The new document, or its metadata.")
+            ),
     };
 
     public Upsert(final XQueryContext context, final FunctionSignature signature) {
@@ -80,31 +117,65 @@ public class Upsert extends BasicFunction {
         // Get connection details
         final String clusterId = args[0].itemAt(0).getStringValue();
 
-        // Get reference to cluster
-        final CouchbaseCluster cluster = cmm.validate(clusterId);
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
 
         // Retrieve other parameters             
         final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
-        final String bucketPassword = cmm.getBucketPassword(clusterId);
 
         final String docName = args[2].itemAt(0).getStringValue();
 
+        final Map<String, Object> options = (getArgumentCount() > 4 && !args[4].isEmpty())
+                ? ConversionTools.convert((AbstractMapType) args[4].itemAt(0))
+                : Collections.emptyMap();
+
+        final boolean returnDocument = ConversionTools.getBooleanValue(RETURN_DOCUMENT, options.get(RETURN_DOCUMENT), true);
+
+        // Count invocation
+        connection.getStatistics().increase(isCalledAs(UPSERT) ? Operation.UPSERT : Operation.INSERT);
 
         try {
+            final Bucket bucket = connection.getBucket(bucketName);
+
+            // Text is stored as provided, the document is not encoded again
+            if (args[3].getItemType() == Type.STRING) {
+                final String json = args[3].getStringValue();
+
+                // Parse only when the document is returned
+                final Sequence document = returnDocument
+                        ? JsonToMap.convert(ConversionTools.convert(json), context)
+                        : null;
+
+                final RawJsonDocument result = isCalledAs(UPSERT)
+                        ? bucket.upsert(RawJsonDocument.create(docName, json))
+                        : bucket.insert(RawJsonDocument.create(docName, json));
+                connection.invalidate(bucketName, docName);
+
+                // Return results
+                return returnDocument ? document : JsonToMap.convertMetadata(result, context);
+            }
+
             // Prepare input
             final JsonObject jsonObject = (JsonObject) MapToJson.convert(args[3]);
             final JsonDocument jsonDocument = JsonDocument.create(docName, jsonObject);
 
             // Perform action
             final JsonDocument result = isCalledAs(UPSERT)
-                    ? cluster.openBucket(bucketName, bucketPassword).upsert(jsonDocument)
-                    : cluster.openBucket(bucketName, bucketPassword).insert(jsonDocument);
+                    ? bucket.upsert(jsonDocument)
+                    : bucket.insert(jsonDocument);
+            connection.invalidate(bucketName, docName);
 
             // Return results
-            return JsonToMap.convert(result.content(), context);
+            return returnDocument
+                    ? JsonToMap.convert(result.content(), context)
+                    : JsonToMap.convertMetadata(result, context);
 
         } catch (final Throwable ex) {
-            return GenericExceptionHandler.handleException(this, ex);
+            // The server may have applied the write
+            if (GenericExceptionHandler.isAmbiguous(ex)) {
+                connection.invalidate(bucketName, docName);
+            }
+            return GenericExceptionHandler.handleException(this, ex, connection);
         }
 
     }
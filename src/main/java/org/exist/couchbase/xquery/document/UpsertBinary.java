@@ -0,0 +1,121 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.xquery.document;
+
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.BinaryDocument;
+import org.exist.couchbase.shared.ByteBufTools;
+import org.exist.couchbase.shared.ConnectionStatistics.Operation;
+import org.exist.couchbase.shared.Constants;
+import org.exist.couchbase.shared.CouchbaseClusterConnection;
+import org.exist.couchbase.shared.CouchbaseClusterManager;
+import org.exist.couchbase.shared.GenericExceptionHandler;
+import org.exist.couchbase.xquery.CouchbaseModule;
+import org.exist.dom.QName;
+import org.exist.xquery.*;
+import org.exist.xquery.value.*;
+
+import java.io.InputStream;
+
+/**
+ * Upsert binary document into bucket
+ *
+ * @author Dannes Wessels
+ */
+public class UpsertBinary extends BasicFunction {
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName("upsert-binary", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Upsert binary document into database",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("documentName", Type.STRING, Cardinality.ONE, "Name of document"),
+                            new FunctionParameterSequenceType("payload", Type.BASE64_BINARY, Cardinality.ONE, "Binary content, e.g. from util:binary-doc()"),
+                    },
+                    new FunctionReturnSequenceType(Type.INTEGER, Cardinality.ONE, "The CAS value of the stored document.")
+            ),
+    };
+
+    public UpsertBinary(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        final CouchbaseClusterManager cmm = CouchbaseClusterManager.getInstance();
+
+        // Get connection details
+        final String clusterId = args[0].itemAt(0).getStringValue();
+
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
+
+        // Retrieve other parameters
+        final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
+
+        final String docName = args[2].itemAt(0).getStringValue();
+
+        final BinaryValue payload = (BinaryValue) args[3].itemAt(0);
+
+        // Count invocation
+        connection.getStatistics().increase(Operation.UPSERT);
+
+        try {
+            final Bucket bucket = connection.getBucket(bucketName);
+
+            // Prepare input, the bytes are streamed into the buffer
+            final ByteBuf content;
+            try (final InputStream is = payload.getInputStream()) {
+                content = ByteBufTools.toByteBuf(is);
+            }
+
+            // Perform action, the SDK releases the buffer when the request has been written
+            final BinaryDocument result;
+            try {
+                result = bucket.upsert(BinaryDocument.create(docName, content));
+
+            } catch (final RuntimeException ex) {
+                // Request rejected before it was written, the SDK did not take ownership of the buffer.
+                // On a timeout the request can still be pending, the SDK releases the buffer then.
+                if (!GenericExceptionHandler.isAmbiguous(ex) && content.refCnt() > 0) {
+                    content.release();
+                }
+                throw ex;
+            }
+            connection.invalidate(bucketName, docName);
+
+            // Return CAS only
+            return new IntegerValue(result.cas());
+
+        } catch (final Throwable ex) {
+            // The server may have applied the write
+            if (GenericExceptionHandler.isAmbiguous(ex)) {
+                connection.invalidate(bucketName, docName);
+            }
+            return GenericExceptionHandler.handleException(this, ex, connection);
+        }
+
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.xquery.document;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.Document;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.RawJsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import org.exist.couchbase.shared.ConnectionStatistics.Operation;
+import org.exist.couchbase.shared.Constants;
+import org.exist.couchbase.shared.*;
+import org.exist.couchbase.xquery.CouchbaseModule;
+import org.exist.dom.QName;
+import org.exist.xquery.*;
+import org.exist.xquery.value.*;
+
+/**
+ * Upsert document in the background
+ *
+ * @author Dannes Wessels
+ */
+public class UpsertDeferred extends BasicFunction {
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName("upsert-deferred", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Upsert document into database in the background. The document is added to a buffer of the connection "
+                            + "and the function returns immediately; the buffer is written in batches. When the buffer is full the "
+                            + "function waits, and fails with COBA0012 when no space is available within the key/value timeout. "
+                            + "Failed writes are logged and counted in the connection report. Use couchbase:flush() to wait "
+                            + "until the documents have been written.",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("documentName", Type.STRING, Cardinality.ONE, "Name of document"),
+                            new FunctionParameterSequenceType("payload", Type.ITEM, Cardinality.ONE, "Json document content"),
+                    },
+                    new FunctionReturnSequenceType(Type.EMPTY, Cardinality.ZERO, "Empty sequence")
+            ),
+    };
+
+    public UpsertDeferred(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        final CouchbaseClusterManager cmm = CouchbaseClusterManager.getInstance();
+
+        // Get connection details
+        final String clusterId = args[0].itemAt(0).getStringValue();
+
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
+
+        // Retrieve other parameters
+        final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
+
+        final String docName = args[2].itemAt(0).getStringValue();
+
+        // Count invocation
+        connection.getStatistics().increase(Operation.UPSERT);
+
+        try {
+            final Bucket bucket = connection.getBucket(bucketName);
+
+            // Prepare input, the conversion requires the query context
+            final Document<?> document = (args[3].getItemType() == Type.STRING)
+                    ? RawJsonDocument.create(docName, args[3].getStringValue())
+                    : JsonDocument.create(docName, (JsonObject) MapToJson.convert(args[3]));
+
+            // Add to buffer, wait when full
+            if (!connection.getWriteBehindBuffer().offer(bucketName, document, bucket.environment().kvTimeout())) {
+                throw new XPathException(this, CouchbaseModule.COBA0012,
+                        String.format("Buffer for deferred upserts is full, document '%s' is not stored.", docName));
+            }
+
+            // Return nothing
+            return EmptySequence.EMPTY_SEQUENCE;
+
+        } catch (final Throwable ex) {
+            return GenericExceptionHandler.handleException(this, ex, connection);
+        }
+
+    }
+}
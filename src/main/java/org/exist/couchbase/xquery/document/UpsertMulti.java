@@ -0,0 +1,199 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.xquery.document;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import org.exist.couchbase.shared.BulkOperation.Result;
+import org.exist.couchbase.shared.ConnectionStatistics.Operation;
+import org.exist.couchbase.shared.Constants;
+import org.exist.couchbase.shared.*;
+import org.exist.couchbase.xquery.CouchbaseModule;
+import org.exist.dom.QName;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.map.AbstractMapType;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Upsert or insert multiple documents into bucket, the mutations are pipelined.
+ *
+ * @author Dannes Wessels
+ */
+public class UpsertMulti extends BasicFunction {
+
+    private static final String UPSERT_MULTI = "upsert-multi";
+    private static final String INSERT_MULTI = "insert-multi";
+
+    /**
+     * Number of documents that are converted before their mutations are sent, at least the concurrency
+     */
+    private static final int WINDOW_SIZE = 1000;
+
+    private static final String DOCUMENTS_DESCRIPTION = "Json document contents, keyed by document name";
+    private static final String PARAMETERS_DESCRIPTION = "Parameters: 'concurrency' (maximum number of mutations in flight, default 32) and "
+            + "'timeout' (milliseconds per document, default the key/value timeout of the environment)";
+    private static final String RETURN_DESCRIPTION = "Per document name the CAS value (xs:integer) of the stored document, "
+            + "or the error code (xs:string) when the document could not be converted or the mutation failed.";
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName(UPSERT_MULTI, CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Upsert documents into database",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("documents", Type.MAP, Cardinality.ONE, DOCUMENTS_DESCRIPTION),
+                    },
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.EXACTLY_ONE, RETURN_DESCRIPTION)
+            ),
+            new FunctionSignature(
+                    new QName(UPSERT_MULTI, CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Upsert documents into database",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("documents", Type.MAP, Cardinality.ONE, DOCUMENTS_DESCRIPTION),
+                            new FunctionParameterSequenceType("parameters", Type.MAP, Cardinality.ZERO_OR_ONE, PARAMETERS_DESCRIPTION),
+                    },
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.EXACTLY_ONE, RETURN_DESCRIPTION)
+            ),
+            new FunctionSignature(
+                    new QName(INSERT_MULTI, CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Insert documents into database",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("documents", Type.MAP, Cardinality.ONE, DOCUMENTS_DESCRIPTION),
+                    },
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.EXACTLY_ONE, RETURN_DESCRIPTION)
+            ),
+            new FunctionSignature(
+                    new QName(INSERT_MULTI, CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Insert documents into database",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("documents", Type.MAP, Cardinality.ONE, DOCUMENTS_DESCRIPTION),
+                            new FunctionParameterSequenceType("parameters", Type.MAP, Cardinality.ZERO_OR_ONE, PARAMETERS_DESCRIPTION),
+                    },
+                    new FunctionReturnSequenceType(Type.MAP, Cardinality.EXACTLY_ONE, RETURN_DESCRIPTION)
+            ),
+    };
+
+    public UpsertMulti(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        final CouchbaseClusterManager cmm = CouchbaseClusterManager.getInstance();
+
+        // Get connection details
+        final String clusterId = args[0].itemAt(0).getStringValue();
+
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
+
+        // Retrieve other parameters
+        final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
+
+        final AbstractMapType documents = (AbstractMapType) args[2].itemAt(0);
+
+        final Map<String, Object> parameters = (getArgumentCount() > 3 && !args[3].isEmpty())
+                ? ConversionTools.convert((AbstractMapType) args[3].itemAt(0))
+                : Collections.emptyMap();
+
+        final boolean isUpsert = isCalledAs(UPSERT_MULTI);
+
+        // Count invocations
+        connection.getStatistics().increase(isUpsert ? Operation.UPSERT : Operation.INSERT, documents.size());
+
+        try {
+            // Prepare input, the documents are converted per window
+            final Map<String, AtomicValue> keys = new LinkedHashMap<>();
+            for (final SequenceIterator i = documents.keys().iterate(); i.hasNext(); ) {
+                final AtomicValue key = (AtomicValue) i.nextItem();
+                keys.put(key.getStringValue(), key);
+            }
+
+            final AsyncBucket bucket = connection.getBucket(bucketName).async();
+
+            final int concurrency = ConversionTools.getIntegerValue(GetMulti.CONCURRENCY, parameters.get(GetMulti.CONCURRENCY), BulkOperation.DEFAULT_CONCURRENCY);
+            final long timeout = ConversionTools.getLongValue(GetMulti.TIMEOUT, parameters.get(GetMulti.TIMEOUT), bucket.environment().kvTimeout());
+
+            // Perform action per window, the conversion requires the query context and is done on this thread.
+            // A document that cannot be converted is reported with its error code.
+            final List<String> docNames = new ArrayList<>(keys.keySet());
+            final int windowSize = Math.max(WINDOW_SIZE, concurrency);
+
+            final List<Result<JsonDocument>> results = new ArrayList<>();
+            final Map<String, Throwable> conversionErrors = new LinkedHashMap<>();
+            for (int start = 0; start < docNames.size(); start += windowSize) {
+
+                final Map<String, JsonDocument> window = new LinkedHashMap<>();
+                for (final String docName : docNames.subList(start, Math.min(start + windowSize, docNames.size()))) {
+                    try {
+                        window.put(docName, JsonDocument.create(docName, (JsonObject) MapToJson.convert(documents.get(keys.get(docName)))));
+                    } catch (final Exception ex) {
+                        conversionErrors.put(docName, ex);
+                    }
+                }
+
+                results.addAll(BulkOperation.execute(window.keySet(),
+                        docName -> isUpsert ? bucket.upsert(window.get(docName)) : bucket.insert(window.get(docName)),
+                        concurrency, timeout));
+                window.keySet().forEach(docName -> connection.invalidate(bucketName, docName));
+            }
+
+            // Return CAS values and error codes
+            final MapType retVal = new MapType(context);
+            for (final Map.Entry<String, Throwable> conversionError : conversionErrors.entrySet()) {
+                final String errorCode = GenericExceptionHandler.getErrorCode(conversionError.getValue()).getErrorQName().getLocalPart();
+                connection.getStatistics().increaseErrors(errorCode);
+                retVal.add(new StringValue(conversionError.getKey()), new StringValue(errorCode));
+            }
+            for (final Result<JsonDocument> result : results) {
+                if (result.isFailed()) {
+                    final String errorCode = GenericExceptionHandler.getErrorCode(result.getError()).getErrorQName().getLocalPart();
+                    connection.getStatistics().increaseErrors(errorCode);
+                    retVal.add(new StringValue(result.getKey()), new StringValue(errorCode));
+
+                } else {
+                    retVal.add(new StringValue(result.getKey()), new IntegerValue(result.getValue().cas()));
+                }
+            }
+            return retVal;
+
+        } catch (final Throwable ex) {
+            return GenericExceptionHandler.handleException(this, ex, connection);
+        }
+
+    }
+
+}
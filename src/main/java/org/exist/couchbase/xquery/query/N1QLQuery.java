@@ -19,11 +19,12 @@
  */
 package org.exist.couchbase.xquery.query;
 
-import com.couchbase.client.java.CouchbaseCluster;
 import com.couchbase.client.java.query.N1qlQuery;
 import com.couchbase.client.java.query.N1qlQueryResult;
 import com.couchbase.client.java.query.N1qlQueryRow;
+import org.exist.couchbase.shared.ConnectionStatistics.Operation;
 import org.exist.couchbase.shared.Constants;
+import org.exist.couchbase.shared.CouchbaseClusterConnection;
 import org.exist.couchbase.shared.CouchbaseClusterManager;
 import org.exist.couchbase.shared.GenericExceptionHandler;
 import org.exist.couchbase.shared.JsonToMap;
@@ -63,21 +64,23 @@ public class N1QLQuery extends BasicFunction {
         // Get connection details
         final String clusterId = args[0].itemAt(0).getStringValue();
 
-        // Get reference to cluster
-        final CouchbaseCluster cluster = cmm.validate(clusterId);
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
 
         // Retrieve other parameters        
         final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
-        final String bucketPassword = cmm.getBucketPassword(clusterId);
 
         final String query = args[2].itemAt(0).getStringValue();
 
+        // Count invocation
+        connection.getStatistics().increase(Operation.N1QL);
+
         try {
             // Prepare query
             final N1qlQuery viewQuery = N1qlQuery.simple(query);
 
             // Perform action
-            final N1qlQueryResult result = cluster.openBucket(bucketName, bucketPassword).query(viewQuery);
+            final N1qlQueryResult result = connection.getBucket(bucketName).query(viewQuery);
 
             if (LOG.isDebugEnabled()) {
                 LOG.debug(result.info().asJsonObject().toString());
@@ -93,7 +96,7 @@ public class N1QLQuery extends BasicFunction {
             return retVal;
 
         } catch (final Throwable ex) {
-            return GenericExceptionHandler.handleException(this, ex);
+            return GenericExceptionHandler.handleException(this, ex, connection);
         }
 
     }
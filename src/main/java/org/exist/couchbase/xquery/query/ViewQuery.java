@@ -19,9 +19,9 @@
  */
 package org.exist.couchbase.xquery.query;
 
-import com.couchbase.client.java.CouchbaseCluster;
 import com.couchbase.client.java.view.ViewResult;
 import com.couchbase.client.java.view.ViewRow;
+import org.exist.couchbase.shared.ConnectionStatistics.Operation;
 import org.exist.couchbase.shared.Constants;
 import org.exist.couchbase.shared.*;
 import org.exist.couchbase.xquery.CouchbaseModule;
@@ -71,12 +71,11 @@ public class ViewQuery extends BasicFunction {
         // Get connection details
         final String clusterId = args[0].itemAt(0).getStringValue();
 
-        // Get reference to cluster
-        final CouchbaseCluster cluster = cmm.validate(clusterId);
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
 
         // Retrieve other parameters        
         final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
-        final String bucketPassword = cmm.getBucketPassword(clusterId);
 
         final String design = args[2].itemAt(0).getStringValue();
         final String view = args[3].itemAt(0).getStringValue();
@@ -85,6 +84,9 @@ public class ViewQuery extends BasicFunction {
                 ? new HashMap<>()
                 : ConversionTools.convert((AbstractMapType) args[4].itemAt(0));
 
+        // Count invocation
+        connection.getStatistics().increase(Operation.VIEW);
+
         try {
             // Prepare query
             com.couchbase.client.java.view.ViewQuery viewQuery = com.couchbase.client.java.view.ViewQuery.from(design, view);
@@ -93,7 +95,7 @@ public class ViewQuery extends BasicFunction {
             viewQuery = parseParameters(viewQuery, parameters);
 
             // Perform action
-            final ViewResult result = cluster.openBucket(bucketName, bucketPassword).query(viewQuery);
+            final ViewResult result = connection.getBucket(bucketName).query(viewQuery);
 
             // Return results
             final ValueSequence retVal = new ValueSequence();
@@ -105,12 +107,20 @@ public class ViewQuery extends BasicFunction {
             return retVal;
 
         } catch (final Throwable ex) {
-            return GenericExceptionHandler.handleException(this, ex);
+            return GenericExceptionHandler.handleException(this, ex, connection);
         }
 
     }
 
-    private com.couchbase.client.java.view.ViewQuery parseParameters(final com.couchbase.client.java.view.ViewQuery viewQuery, final Map<String, Object> parameters) throws XPathException {
+    /**
+     * Set the query parameters on the view query, also used by the asynchronous query.
+     *
+     * @param viewQuery  The view query
+     * @param parameters The query parameters
+     * @return The view query
+     * @throws XPathException A parameter is not valid.
+     */
+    public static com.couchbase.client.java.view.ViewQuery parseParameters(final com.couchbase.client.java.view.ViewQuery viewQuery, final Map<String, Object> parameters) throws XPathException {
 
         for (final Entry<String, Object> entry : parameters.entrySet()) {
 
@@ -0,0 +1,117 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.xquery.raw;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.RawJsonDocument;
+import org.exist.couchbase.shared.ConnectionStatistics.Operation;
+import org.exist.couchbase.shared.Constants;
+import org.exist.couchbase.shared.CouchbaseClusterConnection;
+import org.exist.couchbase.shared.CouchbaseClusterManager;
+import org.exist.couchbase.shared.GenericExceptionHandler;
+import org.exist.couchbase.xquery.CouchbaseModule;
+import org.exist.dom.QName;
+import org.exist.xquery.*;
+import org.exist.xquery.value.*;
+
+/**
+ * Upsert or insert Json text into bucket, without conversion
+ *
+ * @author Dannes Wessels
+ */
+public class UpsertRaw extends BasicFunction {
+
+    private static final String UPSERT_RAW = "upsert-raw";
+    private static final String INSERT_RAW = "insert-raw";
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName(UPSERT_RAW, CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Upsert Json text into database, the text is stored as provided and is not validated",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("documentName", Type.STRING, Cardinality.ONE, "Name of document"),
+                            new FunctionParameterSequenceType("payload", Type.STRING, Cardinality.ONE, "Json text"),
+                    },
+                    new FunctionReturnSequenceType(Type.INTEGER, Cardinality.ONE, "The CAS value of the stored document.")
+            ),
+            new FunctionSignature(
+                    new QName(INSERT_RAW, CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Insert Json text into database, the text is stored as provided and is not validated",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("documentName", Type.STRING, Cardinality.ONE, "Name of document"),
+                            new FunctionParameterSequenceType("payload", Type.STRING, Cardinality.ONE, "Json text"),
+                    },
+                    new FunctionReturnSequenceType(Type.INTEGER, Cardinality.ONE, "The CAS value of the stored document.")
+            ),
+    };
+
+    public UpsertRaw(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        final CouchbaseClusterManager cmm = CouchbaseClusterManager.getInstance();
+
+        // Get connection details
+        final String clusterId = args[0].itemAt(0).getStringValue();
+
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
+
+        // Retrieve other parameters
+        final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
+
+        final String docName = args[2].itemAt(0).getStringValue();
+
+        final String json = args[3].itemAt(0).getStringValue();
+
+        // Count invocation
+        connection.getStatistics().increase(isCalledAs(UPSERT_RAW) ? Operation.UPSERT : Operation.INSERT);
+
+        try {
+            final Bucket bucket = connection.getBucket(bucketName);
+            final RawJsonDocument document = RawJsonDocument.create(docName, json);
+
+            // Perform action
+            final RawJsonDocument result = isCalledAs(UPSERT_RAW)
+                    ? bucket.upsert(document)
+                    : bucket.insert(document);
+            connection.invalidate(bucketName, docName);
+
+            // Return CAS only
+            return new IntegerValue(result.cas());
+
+        } catch (final Throwable ex) {
+            // The server may have applied the write
+            if (GenericExceptionHandler.isAmbiguous(ex)) {
+                connection.invalidate(bucketName, docName);
+            }
+            return GenericExceptionHandler.handleException(this, ex, connection);
+        }
+
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.xquery.raw;
+
+import com.couchbase.client.java.document.RawJsonDocument;
+import com.couchbase.client.java.view.ViewResult;
+import com.couchbase.client.java.view.ViewRow;
+import org.exist.couchbase.shared.ConnectionStatistics.Operation;
+import org.exist.couchbase.shared.Constants;
+import org.exist.couchbase.shared.*;
+import org.exist.couchbase.xquery.CouchbaseModule;
+import org.exist.couchbase.xquery.query.ViewQuery;
+import org.exist.dom.QName;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.map.AbstractMapType;
+import org.exist.xquery.value.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * View query returning the documents as stored, without conversion
+ *
+ * @author Dannes Wessels
+ */
+public class ViewQueryRaw extends BasicFunction {
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName("query-raw", CouchbaseModule.NAMESPACE_URI, CouchbaseModule.PREFIX),
+                    "Query a view with the default view timeout, the documents are returned as Json text.",
+                    new SequenceType[]{
+                            new FunctionParameterSequenceType("clusterId", Type.STRING, Cardinality.ONE, "Couchbase clusterId"),
+                            new FunctionParameterSequenceType("bucket", Type.STRING, Cardinality.ZERO_OR_ONE, "Name of bucket, empty sequence for default bucket"),
+                            new FunctionParameterSequenceType("design", Type.STRING, Cardinality.ONE, "Name of design document"),
+                            new FunctionParameterSequenceType("view", Type.STRING, Cardinality.ONE, "Name of view"),
+                            new FunctionParameterSequenceType("parameters", Type.MAP, Cardinality.ZERO_OR_ONE, "Query parameters")
+
+                    },
+                    new FunctionReturnSequenceType(Type.STRING, Cardinality.ZERO_OR_MORE, "Documents of query, Json text.")
+            ),};
+
+    public ViewQueryRaw(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+
+        final CouchbaseClusterManager cmm = CouchbaseClusterManager.getInstance();
+
+        // Get connection details
+        final String clusterId = args[0].itemAt(0).getStringValue();
+
+        // Get reference to connection
+        final CouchbaseClusterConnection connection = cmm.validateConnection(clusterId, context.getSubject().getName());
+
+        // Retrieve other parameters
+        final String bucketName = (args[1].isEmpty()) ? Constants.DEFAULT_BUCKET : args[1].itemAt(0).getStringValue();
+
+        final String design = args[2].itemAt(0).getStringValue();
+        final String view = args[3].itemAt(0).getStringValue();
+
+        final Map<String, Object> parameters = (args[4].isEmpty())
+                ? new HashMap<>()
+                : ConversionTools.convert((AbstractMapType) args[4].itemAt(0));
+
+        // Count invocation
+        connection.getStatistics().increase(Operation.VIEW);
+
+        try {
+            // Prepare query
+            final com.couchbase.client.java.view.ViewQuery viewQuery = ViewQuery.parseParameters(
+                    com.couchbase.client.java.view.ViewQuery.from(design, view), parameters);
+
+            // Perform action
+            final ViewResult result = connection.getBucket(bucketName).query(viewQuery);
+
+            // Return results
+            final ValueSequence retVal = new ValueSequence();
+
+            for (final ViewRow row : result) {
+                final RawJsonDocument document = row.document(RawJsonDocument.class);
+                if (document != null) {
+                    retVal.add(new StringValue(document.content()));
+                }
+            }
+
+            return retVal;
+
+        } catch (final Throwable ex) {
+            return GenericExceptionHandler.handleException(this, ex, connection);
+        }
+
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.test.java;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import org.exist.couchbase.shared.BulkOperation;
+import org.exist.couchbase.shared.BulkOperation.Result;
+import org.exist.couchbase.shared.GenericExceptionHandler;
+import org.exist.couchbase.xquery.CouchbaseModule;
+import org.junit.Test;
+import rx.Observable;
+
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fan out of bulk operations against a mocked bucket that simulates network latency, no running
+ * Couchbase server is required.
+ *
+ * @author wessels
+ */
+public class BulkOperationTests {
+
+    private static final long LATENCY = 20L;
+    private static final int DOCUMENTS = 50;
+
+    /**
+     * Create a bucket with documents 'doc0' to 'doc[n-1]', each request takes LATENCY ms.
+     */
+    private static AsyncBucket createBucket(final int documents) {
+        return (AsyncBucket) Proxy.newProxyInstance(AsyncBucket.class.getClassLoader(), new Class<?>[]{AsyncBucket.class},
+                (proxy, method, args) -> {
+                    if ("get".equals(method.getName()) && args.length == 1 && args[0] instanceof String) {
+                        final String id = (String) args[0];
+                        final int nr = id.startsWith("doc") ? Integer.parseInt(id.substring(3)) : documents;
+
+                        final Observable<JsonDocument> result = (nr < documents)
+                                ? Observable.just(JsonDocument.create(id, JsonObject.create().put("nr", nr)))
+                                : Observable.empty();
+
+                        return result.delaySubscription(LATENCY, TimeUnit.MILLISECONDS);
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    private static List<String> createKeys(final int count) {
+        final List<String> keys = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            keys.add("doc" + i);
+        }
+        return keys;
+    }
+
+    @Test
+    public void getMulti() {
+
+        final AsyncBucket bucket = createBucket(DOCUMENTS);
+
+        // Two keys do not exist
+        final List<String> keys = createKeys(DOCUMENTS);
+        keys.add("unknown1");
+        keys.add("unknown2");
+
+        final List<Result<JsonDocument>> results = BulkOperation.execute(keys, bucket::get, 16, 1000L);
+
+        assertEquals(keys.size(), results.size());
+
+        final Map<String, JsonDocument> found = new HashMap<>();
+        for (final Result<JsonDocument> result : results) {
+            assertFalse(result.isFailed());
+            if (result.getValue() != null) {
+                found.put(result.getKey(), result.getValue());
+            }
+        }
+
+        assertEquals(DOCUMENTS, found.size());
+        assertEquals(Integer.valueOf(7), found.get("doc7").content().getInt("nr"));
+        assertFalse(found.containsKey("unknown1"));
+    }
+
+    @Test
+    public void concurrencyBounded() {
+
+        final AsyncBucket bucket = createBucket(DOCUMENTS);
+        final List<String> keys = createKeys(DOCUMENTS);
+
+        final int concurrency = 8;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+
+        // Track the requests that are outstanding at the same time
+        final List<Result<JsonDocument>> results = BulkOperation.execute(keys,
+                key -> bucket.get(key)
+                        .doOnSubscribe(() -> maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max))
+                        .doOnTerminate(inFlight::decrementAndGet),
+                concurrency, 5000L);
+
+        assertEquals(DOCUMENTS, results.size());
+        results.forEach(result -> assertNotNull(result.getValue()));
+
+        // Requests overlap, but never more than configured
+        assertTrue(maxInFlight.get() > 1);
+        assertTrue(maxInFlight.get() <= concurrency);
+    }
+
+    @Test
+    public void failuresPerKey() {
+
+        final List<String> keys = Arrays.asList("good", "slow");
+
+        final List<Result<String>> results = BulkOperation.execute(keys,
+                key -> "good".equals(key) ? Observable.just(key) : Observable.<String>never(), 2, 100L);
+
+        final Map<String, Result<String>> byKey = new HashMap<>();
+        results.forEach(result -> byKey.put(result.getKey(), result));
+
+        assertEquals("good", byKey.get("good").getValue());
+        assertTrue(byKey.get("slow").getError() instanceof TimeoutException);
+    }
+
+    @Test
+    public void blockingTimeoutErrorCode() {
+
+        try {
+            // As a replica read, the blocking observable wraps the TimeoutException
+            Observable.<String>never().timeout(10, TimeUnit.MILLISECONDS).toBlocking().single();
+            fail("Timeout not reported");
+
+        } catch (final RuntimeException ex) {
+            assertEquals(CouchbaseModule.COBA0011, GenericExceptionHandler.getErrorCode(ex));
+            assertTrue(GenericExceptionHandler.isAmbiguous(ex));
+        }
+    }
+
+}
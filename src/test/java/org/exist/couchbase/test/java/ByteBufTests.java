@@ -0,0 +1,151 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.test.java;
+
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.PooledByteBufAllocator;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
+import com.couchbase.client.deps.io.netty.util.ResourceLeakDetector;
+import org.exist.couchbase.shared.ByteBufTools;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reference counting of the buffers of binary documents, with paranoid leak detection.
+ *
+ * @author wessels
+ */
+public class ByteBufTests {
+
+    private static final int SIZE = 100_000;
+
+    private static ResourceLeakDetector.Level level;
+
+    @BeforeClass
+    public static void setUpClass() {
+        level = ResourceLeakDetector.getLevel();
+        ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.PARANOID);
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        ResourceLeakDetector.setLevel(level);
+    }
+
+    private static byte[] createData() {
+        final byte[] data = new byte[SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    @Test
+    public void readReleasesBuffer() throws IOException {
+
+        final byte[] data = createData();
+
+        final ByteBuf buffer = PooledByteBufAllocator.DEFAULT.buffer(SIZE);
+        buffer.writeBytes(data);
+
+        final byte[] read = new byte[SIZE];
+        try (final InputStream is = ByteBufTools.toInputStream(buffer)) {
+            int offset = 0;
+            int len;
+            while ((len = is.read(read, offset, SIZE - offset)) > 0) {
+                offset += len;
+            }
+            assertEquals(SIZE, offset);
+            assertEquals(1, buffer.refCnt());
+        }
+
+        assertArrayEquals(data, read);
+        assertEquals(0, buffer.refCnt());
+    }
+
+    @Test
+    public void closeWithoutReadReleasesBuffer() throws IOException {
+
+        final ByteBuf buffer = PooledByteBufAllocator.DEFAULT.buffer(SIZE);
+        buffer.writeBytes(createData());
+
+        ByteBufTools.toInputStream(buffer).close();
+
+        assertEquals(0, buffer.refCnt());
+    }
+
+    @Test
+    public void writeIntoBuffer() throws IOException {
+
+        final byte[] data = createData();
+
+        final ByteBuf buffer = ByteBufTools.toByteBuf(new ByteArrayInputStream(data));
+        try {
+            assertEquals(SIZE, buffer.readableBytes());
+
+            final byte[] written = new byte[SIZE];
+            buffer.getBytes(0, written);
+            assertTrue(Arrays.equals(data, written));
+
+        } finally {
+            assertTrue(buffer.release());
+        }
+
+        assertEquals(0, buffer.refCnt());
+    }
+
+    @Test
+    public void failingStream() {
+
+        final InputStream failing = new InputStream() {
+            private int count = 0;
+
+            @Override
+            public int read() throws IOException {
+                if (++count > SIZE / 2) {
+                    throw new IOException("Broken stream");
+                }
+                return 1;
+            }
+        };
+
+        final ByteBuf buffer = Unpooled.buffer();
+
+        try {
+            ByteBufTools.toByteBuf(failing, buffer);
+            fail("Broken stream not reported");
+
+        } catch (final IOException ex) {
+            assertEquals("Broken stream", ex.getMessage());
+        }
+
+        // The partially filled buffer is released
+        assertEquals(0, buffer.refCnt());
+    }
+
+}
@@ -0,0 +1,364 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.test.java;
+
+import org.exist.couchbase.shared.CouchbaseClusterManager;
+import org.exist.couchbase.shared.EnvironmentProfile;
+import org.exist.couchbase.xquery.CouchbaseModule;
+import org.exist.xquery.XPathException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drive the connection registry from multiple threads. Creating a cluster object does
+ * not connect to the server, no running Couchbase server is required.
+ *
+ * @author wessels
+ */
+public class ClusterManagerTests {
+
+    private static final String CONNECTION_STRING = "couchbase://localhost";
+    private static final String SUBJECT = "admin";
+
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 25;
+
+    @Test
+    public void concurrentCreateValidateRemove() throws Exception {
+
+        final CouchbaseClusterManager manager = CouchbaseClusterManager.getInstance();
+
+        // Connection that is validated continuously while others come and go
+        final String stableId = manager.create(CONNECTION_STRING);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean running = new AtomicBoolean(true);
+
+        try {
+            // Reader
+            final Future<Long> reader = executor.submit(() -> {
+                start.await();
+                long lookups = 0;
+                while (running.get()) {
+                    assertNotNull(manager.validateConnection(stableId, SUBJECT));
+                    assertTrue(manager.isValid(stableId));
+                    lookups++;
+                }
+                return lookups;
+            });
+
+            // Writers
+            final List<Future<List<String>>> writers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                writers.add(executor.submit(() -> {
+                    start.await();
+                    final List<String> ids = new ArrayList<>();
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        final String id = manager.create(CONNECTION_STRING);
+                        assertNotNull(manager.validateConnection(id, SUBJECT));
+                        assertTrue(manager.list().contains(id));
+
+                        manager.remove(id);
+                        assertFalse(manager.isValid(id));
+
+                        ids.add(id);
+                    }
+                    return ids;
+                }));
+            }
+
+            start.countDown();
+
+            final List<String> allIds = new ArrayList<>();
+            for (final Future<List<String>> writer : writers) {
+                allIds.addAll(writer.get(2, TimeUnit.MINUTES));
+            }
+
+            running.set(false);
+            assertTrue(reader.get(1, TimeUnit.MINUTES) > 0);
+
+            // All ids are unique, none of them is still registered
+            assertEquals(THREADS * ITERATIONS, allIds.stream().distinct().count());
+            for (final String id : allIds) {
+                assertFalse(manager.list().contains(id));
+            }
+
+            assertTrue(manager.isValid(stableId));
+
+        } finally {
+            running.set(false);
+            executor.shutdownNow();
+            manager.remove(stableId);
+        }
+
+        assertFalse(manager.isValid(stableId));
+    }
+
+    @Test
+    public void sharedCluster() {
+
+        final CouchbaseClusterManager manager = CouchbaseClusterManager.getInstance();
+
+        final String id1 = manager.create(CONNECTION_STRING, null, "secret");
+        final String id2 = manager.create(CONNECTION_STRING, null, "secret");
+        final String id3 = manager.create(CONNECTION_STRING, null, "other");
+
+        try {
+            // Each caller gets its own handle
+            assertNotEquals(id1, id2);
+
+            // Identical connection string and credentials share the cluster
+            assertSame(manager.get(id1), manager.get(id2));
+            assertNotSame(manager.get(id1), manager.get(id3));
+
+            // Cluster stays available until the last reference is closed
+            final Object cluster = manager.get(id2);
+            manager.remove(id1);
+            assertFalse(manager.isValid(id1));
+            assertSame(cluster, manager.get(id2));
+
+        } finally {
+            manager.remove(id1);
+            manager.remove(id2);
+            manager.remove(id3);
+        }
+    }
+
+    @Test
+    public void environmentReleasedWithLastCluster() {
+
+        final CouchbaseClusterManager manager = CouchbaseClusterManager.getInstance();
+
+        final Map<String, Object> options = new HashMap<>();
+        options.put(EnvironmentProfile.KV_TIMEOUT, 1234L);
+        final EnvironmentProfile profile = EnvironmentProfile.from(options);
+
+        final String id1 = manager.create(CONNECTION_STRING, null, "secret", profile);
+        final String id2 = manager.create(CONNECTION_STRING, null, "other", EnvironmentProfile.from(options));
+
+        try {
+            // Identical settings share the environment
+            assertTrue(manager.listEnvironments().contains(profile.getName()));
+
+            manager.remove(id1);
+            assertTrue(manager.listEnvironments().contains(profile.getName()));
+
+            // Environment is shut down with the last cluster
+            manager.remove(id2);
+            assertFalse(manager.listEnvironments().contains(profile.getName()));
+
+            // ... and created again on the next connect
+            final String id3 = manager.create(CONNECTION_STRING, null, "secret", profile);
+            assertTrue(manager.listEnvironments().contains(profile.getName()));
+            manager.remove(id3);
+            assertFalse(manager.listEnvironments().contains(profile.getName()));
+
+        } finally {
+            manager.remove(id1);
+            manager.remove(id2);
+        }
+    }
+
+    @Test
+    public void defaultEnvironmentKept() {
+
+        final CouchbaseClusterManager manager = CouchbaseClusterManager.getInstance();
+
+        // Connect, work and close, as done per request
+        final String id = manager.create(CONNECTION_STRING, null, "default-environment");
+        manager.remove(id);
+
+        // The default environment is not shut down
+        assertTrue(manager.listEnvironments().contains(EnvironmentProfile.DEFAULT));
+    }
+
+    @Test
+    public void idleConnectionEvicted() throws Exception {
+
+        final CouchbaseClusterManager manager = CouchbaseClusterManager.getInstance();
+
+        final String active = manager.create(CONNECTION_STRING);
+        final String idle = manager.create(CONNECTION_STRING);
+
+        try {
+            manager.configureEviction(3000L, 0);
+
+            // Keep one connection in use until the reaper has closed the other one
+            final long deadline = System.currentTimeMillis() + 10000L;
+            while (manager.isValid(idle) && System.currentTimeMillis() < deadline) {
+                assertNotNull(manager.validateConnection(active, SUBJECT));
+                Thread.sleep(200L);
+            }
+
+            assertFalse(manager.isValid(idle));
+            assertTrue(manager.isValid(active));
+            assertInvalid(manager, idle, "idleSubject");
+
+        } finally {
+            manager.configureEviction(0L, 0);
+            manager.remove(active);
+            manager.remove(idle);
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedEvicted() throws Exception {
+
+        final CouchbaseClusterManager manager = CouchbaseClusterManager.getInstance();
+        final int existing = manager.list().size();
+
+        // The time of last use has a resolution of a second
+        final String first = manager.create(CONNECTION_STRING);
+        Thread.sleep(1100L);
+        final String second = manager.create(CONNECTION_STRING);
+        Thread.sleep(1100L);
+        assertNotNull(manager.validateConnection(first, SUBJECT));
+
+        String third = null;
+        try {
+            manager.configureEviction(0L, existing + 2);
+
+            // Exceeds the maximum, the second connection is used least recently
+            third = manager.create(CONNECTION_STRING);
+
+            assertTrue(manager.isValid(first));
+            assertFalse(manager.isValid(second));
+            assertTrue(manager.isValid(third));
+            assertInvalid(manager, second, "lruSubject");
+
+        } finally {
+            manager.configureEviction(0L, 0);
+            manager.remove(first);
+            manager.remove(second);
+            if (third != null) {
+                manager.remove(third);
+            }
+        }
+    }
+
+    private static void assertInvalid(final CouchbaseClusterManager manager, final String id, final String subject) {
+        try {
+            manager.validateConnection(id, subject);
+            fail("Evicted connection accepted");
+
+        } catch (final XPathException ex) {
+            assertEquals(CouchbaseModule.COBA0001, ex.getErrorCode());
+        }
+    }
+
+    @Test
+    public void invalidIdsFailFast() {
+
+        final CouchbaseClusterManager manager = CouchbaseClusterManager.getInstance();
+
+        final long start = System.currentTimeMillis();
+
+        int invalid = 0;
+        int refused = 0;
+        for (int i = 0; i < 20; i++) {
+            try {
+                manager.validateConnection("doesNotExist", "intruder");
+                fail("Invalid id accepted");
+
+            } catch (final XPathException ex) {
+                if (ex.getErrorCode() == CouchbaseModule.COBA0001) {
+                    invalid++;
+                } else if (ex.getErrorCode() == CouchbaseModule.COBA0004) {
+                    refused++;
+                }
+            }
+        }
+
+        // No delay for the caller
+        assertTrue(System.currentTimeMillis() - start < 1000L);
+
+        assertTrue(invalid > 0);
+        assertTrue(refused > 0);
+        assertEquals(20, invalid + refused);
+    }
+
+    @Test
+    public void throttledSubjectRefusedForValidIds() throws XPathException {
+
+        final CouchbaseClusterManager manager = CouchbaseClusterManager.getInstance();
+        final String id = manager.create(CONNECTION_STRING);
+
+        try {
+            // Exhaust the attempts of a guessing subject
+            boolean refused = false;
+            for (int i = 0; i < 20 && !refused; i++) {
+                try {
+                    manager.validateConnection("guess" + i, "guesser");
+                } catch (final XPathException ex) {
+                    refused = (ex.getErrorCode() == CouchbaseModule.COBA0004);
+                }
+            }
+            assertTrue(refused);
+
+            // A valid id does not help the refused subject
+            try {
+                manager.validateConnection(id, "guesser");
+                fail("Refused subject accepted");
+            } catch (final XPathException ex) {
+                assertEquals(CouchbaseModule.COBA0004, ex.getErrorCode());
+            }
+
+            // Other subjects are not affected
+            assertNotNull(manager.validateConnection(id, SUBJECT));
+
+        } finally {
+            manager.remove(id);
+        }
+    }
+
+    @Test
+    public void namedConnection() throws XPathException {
+
+        final CouchbaseClusterManager manager = CouchbaseClusterManager.getInstance();
+
+        try {
+            assertTrue(manager.register("named", CONNECTION_STRING, null, EnvironmentProfile.getDefault(), Collections.emptyList()));
+
+            // Module is instantiated again, the existing connection is kept
+            final Object cluster = manager.get("named");
+            assertFalse(manager.register("named", CONNECTION_STRING, null, EnvironmentProfile.getDefault(), Collections.emptyList()));
+            assertSame(cluster, manager.get("named"));
+
+            // The name is the clusterId
+            assertTrue(manager.validateConnection("named", SUBJECT).isPinned());
+
+        } finally {
+            manager.remove("named");
+        }
+
+        assertFalse(manager.isValid("named"));
+    }
+
+}
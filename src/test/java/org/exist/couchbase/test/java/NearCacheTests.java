@@ -0,0 +1,136 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.test.java;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import org.exist.couchbase.shared.NearCache;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bounds, expiry and invalidation of the near cache, no running Couchbase server is required.
+ *
+ * @author wessels
+ */
+public class NearCacheTests {
+
+    private static final String BUCKET = "default";
+
+    @Test
+    public void optIn() {
+        assertNull(NearCache.from(Collections.emptyMap()));
+
+        final Map<String, Object> options = new HashMap<>();
+        options.put(NearCache.TTL, 1000);
+        assertNotNull(NearCache.from(options));
+
+        options.put(NearCache.MAX_ENTRIES, -1);
+        try {
+            NearCache.from(options);
+            fail("Negative value accepted");
+        } catch (final IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void boundedByEntries() {
+        final NearCache cache = new NearCache(3, 1000, 60000);
+
+        for (int i = 0; i < 5; i++) {
+            cache.put(BUCKET, "doc" + i, JsonObject.create().put("nr", i), i, 10, cache.getVersion(BUCKET, "doc" + i));
+        }
+
+        // Eldest entries are evicted
+        assertEquals(3, cache.size());
+        assertEquals(30, cache.getBytes());
+        assertEquals(2, cache.getEvictions());
+        assertNull(cache.get(BUCKET, "doc0"));
+        assertEquals(4, (int) cache.get(BUCKET, "doc4").getContent().getInt("nr"));
+    }
+
+    @Test
+    public void boundedByBytes() {
+        final NearCache cache = new NearCache(100, 100, 60000);
+
+        cache.put(BUCKET, "doc1", JsonObject.create(), 1, 60, cache.getVersion(BUCKET, "doc1"));
+        cache.put(BUCKET, "doc2", JsonObject.create(), 1, 60, cache.getVersion(BUCKET, "doc2"));
+        assertEquals(1, cache.size());
+        assertEquals(60, cache.getBytes());
+
+        // Larger than the cache
+        cache.put(BUCKET, "doc3", JsonObject.create(), 1, 101, cache.getVersion(BUCKET, "doc3"));
+        assertNull(cache.get(BUCKET, "doc3"));
+        assertNotNull(cache.get(BUCKET, "doc2"));
+    }
+
+    @Test
+    public void invalidate() {
+        final NearCache cache = new NearCache(100, 1000, 60000);
+
+        cache.put(BUCKET, "doc", JsonObject.create(), 1, 10, cache.getVersion(BUCKET, "doc"));
+        cache.put("other", "doc", JsonObject.create(), 1, 10, cache.getVersion("other", "doc"));
+
+        cache.invalidate(BUCKET, "doc");
+        assertNull(cache.get(BUCKET, "doc"));
+        assertNotNull(cache.get("other", "doc"));
+        assertEquals(10, cache.getBytes());
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void revalidate() throws InterruptedException {
+        final NearCache cache = new NearCache(100, 1000, 10);
+
+        cache.put(BUCKET, "doc", JsonObject.create(), 42, 10, cache.getVersion(BUCKET, "doc"));
+        Thread.sleep(20);
+
+        final NearCache.Entry entry = cache.get(BUCKET, "doc");
+        assertTrue(entry.isExpired());
+
+        // Unchanged document
+        assertTrue(cache.revalidate(BUCKET, "doc", entry, 42));
+        assertFalse(entry.isExpired());
+
+        // Changed document
+        assertFalse(cache.revalidate(BUCKET, "doc", entry, 43));
+        assertNull(cache.get(BUCKET, "doc"));
+    }
+
+    @Test
+    public void writeDuringRetrieval() {
+        final NearCache cache = new NearCache(100, 1000, 60000);
+
+        // Document written after the retrieval started
+        final long version = cache.getVersion(BUCKET, "doc");
+        cache.invalidate(BUCKET, "doc");
+        cache.put(BUCKET, "doc", JsonObject.create(), 1, 10, version);
+
+        assertNull(cache.get(BUCKET, "doc"));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.test.java;
+
+import org.exist.couchbase.shared.NegativeCache;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Expiry, bounds and invalidation of the cache of absent documents, no running Couchbase
+ * server is required.
+ *
+ * @author wessels
+ */
+public class NegativeCacheTests {
+
+    private static final String BUCKET = "default";
+
+    @Test
+    public void optIn() {
+        assertNull(NegativeCache.from(Collections.emptyMap()));
+
+        final Map<String, Object> options = new HashMap<>();
+        options.put(NegativeCache.MAX_ENTRIES, 10);
+        try {
+            NegativeCache.from(options);
+            fail("Missing ttl accepted");
+        } catch (final IllegalArgumentException ex) {
+            // expected
+        }
+
+        options.put(NegativeCache.TTL, 500);
+        assertNotNull(NegativeCache.from(options));
+    }
+
+    @Test
+    public void expiry() throws InterruptedException {
+        final NegativeCache cache = new NegativeCache(20, 100);
+
+        cache.putAbsent(BUCKET, "doc", cache.getVersion(BUCKET, "doc"));
+        assertTrue(cache.isAbsent(BUCKET, "doc"));
+        assertFalse(cache.isAbsent("other", "doc"));
+
+        Thread.sleep(40);
+        assertFalse(cache.isAbsent(BUCKET, "doc"));
+        assertEquals(0, cache.size());
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getStores());
+    }
+
+    @Test
+    public void invalidate() {
+        final NegativeCache cache = new NegativeCache(60000, 100);
+
+        cache.putAbsent(BUCKET, "doc", cache.getVersion(BUCKET, "doc"));
+        cache.invalidate(BUCKET, "doc");
+        assertFalse(cache.isAbsent(BUCKET, "doc"));
+        assertEquals(1, cache.getInvalidations());
+
+        // Document written while it was retrieved
+        final long version = cache.getVersion(BUCKET, "doc");
+        cache.invalidate(BUCKET, "doc");
+        cache.putAbsent(BUCKET, "doc", version);
+        assertFalse(cache.isAbsent(BUCKET, "doc"));
+    }
+
+    @Test
+    public void bounded() {
+        final NegativeCache cache = new NegativeCache(60000, 3);
+
+        for (int i = 0; i < 5; i++) {
+            cache.putAbsent(BUCKET, "doc" + i, cache.getVersion(BUCKET, "doc" + i));
+
+            // Recently used, not evicted
+            assertTrue(cache.isAbsent(BUCKET, "doc0"));
+        }
+
+        assertEquals(3, cache.size());
+        assertEquals(2, cache.getEvictions());
+        assertTrue(cache.isAbsent(BUCKET, "doc0"));
+        assertFalse(cache.isAbsent(BUCKET, "doc1"));
+        assertFalse(cache.isAbsent(BUCKET, "doc2"));
+        assertTrue(cache.isAbsent(BUCKET, "doc4"));
+    }
+
+    @Test
+    public void writeOfOtherDocument() {
+        final NegativeCache cache = new NegativeCache(60000, 100);
+
+        // Write of another document during the retrieval
+        final long version = cache.getVersion(BUCKET, "doc");
+        cache.invalidate(BUCKET, "other");
+        cache.putAbsent(BUCKET, "doc", version);
+
+        assertTrue(cache.isAbsent(BUCKET, "doc"));
+    }
+}
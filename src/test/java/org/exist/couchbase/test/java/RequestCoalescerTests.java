@@ -0,0 +1,203 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.test.java;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import org.exist.couchbase.shared.RequestCoalescer;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Concurrent retrievals of one document against a mocked bucket, no running Couchbase
+ * server is required.
+ *
+ * @author wessels
+ */
+public class RequestCoalescerTests {
+
+    private static final int THREADS = 16;
+
+    /**
+     * Create a bucket that counts the requests, each request waits until all other
+     * callers are waiting for its result.
+     */
+    private static Bucket createBucket(final AtomicInteger requests, final RequestCoalescer<JsonObject> coalescer) {
+        return (Bucket) Proxy.newProxyInstance(Bucket.class.getClassLoader(), new Class<?>[]{Bucket.class},
+                (proxy, method, args) -> {
+                    if ("get".equals(method.getName()) && args.length == 1 && args[0] instanceof String) {
+                        requests.incrementAndGet();
+
+                        final long deadline = System.currentTimeMillis() + 10000L;
+                        while (coalescer.getCoalesced() < THREADS - 1 && System.currentTimeMillis() < deadline) {
+                            Thread.sleep(1);
+                        }
+
+                        if ("missing".equals(args[0])) {
+                            throw new IllegalStateException("Server failure");
+                        }
+                        return JsonDocument.create((String) args[0], JsonObject.create().put("nr", 1));
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    private static List<Future<JsonObject>> getConcurrently(final ExecutorService executor, final Bucket bucket,
+                                                           final RequestCoalescer<JsonObject> coalescer, final String docName) {
+        final CountDownLatch start = new CountDownLatch(1);
+
+        final List<Future<JsonObject>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            results.add(executor.submit(() -> {
+                start.await();
+                return coalescer.execute("default", docName, 1, TimeUnit.MINUTES, () -> bucket.get(docName).content());
+            }));
+        }
+
+        start.countDown();
+        return results;
+    }
+
+    @Test
+    public void singleRequest() throws Exception {
+
+        final AtomicInteger requests = new AtomicInteger();
+        final RequestCoalescer<JsonObject> coalescer = new RequestCoalescer<>();
+        final Bucket bucket = createBucket(requests, coalescer);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final List<Future<JsonObject>> results = getConcurrently(executor, bucket, coalescer, "doc");
+
+            // All callers get the same document
+            final JsonObject first = results.get(0).get(1, TimeUnit.MINUTES);
+            for (final Future<JsonObject> result : results) {
+                assertSame(first, result.get(1, TimeUnit.MINUTES));
+            }
+
+            assertEquals(1, requests.get());
+            assertEquals(1, coalescer.getExecuted());
+            assertEquals(THREADS - 1, coalescer.getCoalesced());
+
+            // Request completed, the next retrieval is sent again
+            coalescer.execute("default", "doc", 1, TimeUnit.MINUTES, () -> bucket.get("doc").content());
+            assertEquals(2, requests.get());
+
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void sharedFailure() throws Exception {
+
+        final AtomicInteger requests = new AtomicInteger();
+        final RequestCoalescer<JsonObject> coalescer = new RequestCoalescer<>();
+        final Bucket bucket = createBucket(requests, coalescer);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (final Future<JsonObject> result : getConcurrently(executor, bucket, coalescer, "missing")) {
+                try {
+                    result.get(1, TimeUnit.MINUTES);
+                    fail("Failure not passed to caller");
+
+                } catch (final ExecutionException ex) {
+                    assertTrue(ex.getCause() instanceof IllegalStateException);
+                }
+            }
+
+            assertEquals(1, requests.get());
+
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void invalidateDetachesRequest() throws Exception {
+
+        final RequestCoalescer<JsonObject> coalescer = new RequestCoalescer<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // Request that started before the write
+            final Future<JsonObject> before = executor.submit(() -> coalescer.execute("default", "doc", 1, TimeUnit.MINUTES, () -> {
+                started.countDown();
+                release.await();
+                return JsonObject.create().put("nr", 1);
+            }));
+            assertTrue(started.await(1, TimeUnit.MINUTES));
+
+            // Document written, the next caller does not join the old request
+            coalescer.invalidate("default", "doc");
+            final JsonObject after = coalescer.execute("default", "doc", 1, TimeUnit.MINUTES, () -> JsonObject.create().put("nr", 2));
+            assertEquals(2, (int) after.getInt("nr"));
+            assertEquals(0, coalescer.getCoalesced());
+
+            release.countDown();
+            assertEquals(1, (int) before.get(1, TimeUnit.MINUTES).getInt("nr"));
+
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void waiterTimeout() throws Exception {
+
+        final RequestCoalescer<JsonObject> coalescer = new RequestCoalescer<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> coalescer.execute("default", "doc", 1, TimeUnit.MINUTES, () -> {
+                started.countDown();
+                release.await();
+                return JsonObject.create();
+            }));
+            assertTrue(started.await(1, TimeUnit.MINUTES));
+
+            // Waiter uses its own timeout
+            try {
+                coalescer.execute("default", "doc", 10, TimeUnit.MILLISECONDS, JsonObject::create);
+                fail("Waiter did not time out");
+            } catch (final TimeoutException ex) {
+                // expected
+            }
+
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+}
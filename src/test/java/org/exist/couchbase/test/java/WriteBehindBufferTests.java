@@ -0,0 +1,224 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.couchbase.test.java;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.env.CouchbaseEnvironment;
+import org.exist.couchbase.shared.ConnectionStatistics;
+import org.exist.couchbase.shared.WriteBehindBuffer;
+import org.exist.couchbase.xquery.CouchbaseModule;
+import org.junit.Test;
+import rx.Observable;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Deferred upserts against a mocked bucket, no running Couchbase server is required.
+ *
+ * @author wessels
+ */
+public class WriteBehindBufferTests {
+
+    private static final long LATENCY = 5L;
+
+    private static final CouchbaseEnvironment ENVIRONMENT = (CouchbaseEnvironment) Proxy.newProxyInstance(
+            CouchbaseEnvironment.class.getClassLoader(), new Class<?>[]{CouchbaseEnvironment.class},
+            (proxy, method, args) -> {
+                if ("kvTimeout".equals(method.getName())) {
+                    return 1000L;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            });
+
+    /**
+     * Create a bucket that counts the upserts, document 'fail' is not accepted. Each upsert
+     * signals 'started' and waits for 'available'.
+     */
+    private static AsyncBucket createBucket(final AtomicInteger upserts, final CountDownLatch started, final CountDownLatch available) {
+        return (AsyncBucket) Proxy.newProxyInstance(AsyncBucket.class.getClassLoader(), new Class<?>[]{AsyncBucket.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "environment":
+                            return ENVIRONMENT;
+
+                        case "upsert":
+                            started.countDown();
+                            available.await();
+                            upserts.incrementAndGet();
+                            final JsonDocument document = (JsonDocument) args[0];
+                            return "fail".equals(document.id())
+                                    ? Observable.error(new IllegalArgumentException("Rejected"))
+                                    : Observable.just(document).delaySubscription(LATENCY, TimeUnit.MILLISECONDS);
+
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static JsonDocument createDocument(final String id, final int nr) {
+        return JsonDocument.create(id, JsonObject.create().put("nr", nr));
+    }
+
+    @Test
+    public void batchedWrites() throws InterruptedException {
+
+        final AtomicInteger upserts = new AtomicInteger();
+        final AsyncBucket bucket = createBucket(upserts, new CountDownLatch(1), new CountDownLatch(0));
+        final ConnectionStatistics statistics = new ConnectionStatistics();
+        final Set<String> written = ConcurrentHashMap.newKeySet();
+
+        final WriteBehindBuffer buffer = new WriteBehindBuffer("test", 1000, bucketName -> bucket, statistics,
+                (bucketName, docName) -> written.add(docName));
+        try {
+            for (int i = 0; i < 1000; i++) {
+                assertTrue(buffer.offer("default", createDocument("doc" + i, i), 1000));
+            }
+            assertTrue(buffer.offer("default", createDocument("fail", 0), 1000));
+
+            // Barrier
+            assertTrue(buffer.flush(60000));
+            assertEquals(0, buffer.getQueueDepth());
+
+            assertEquals(1001, buffer.getProcessed());
+            assertEquals(1, buffer.getFailed());
+            assertEquals(1, statistics.getErrors(CouchbaseModule.COBA0002.getErrorQName().getLocalPart()));
+            assertEquals(1001, written.size());
+
+            // Written in batches, not one by one
+            assertTrue(buffer.getBatches() < 1001);
+
+        } finally {
+            buffer.close(1000);
+        }
+    }
+
+    @Test
+    public void lastVersionWins() throws InterruptedException {
+
+        final AtomicInteger upserts = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch available = new CountDownLatch(1);
+        final AsyncBucket bucket = createBucket(upserts, started, available);
+
+        final WriteBehindBuffer buffer = new WriteBehindBuffer("test", 100, bucketName -> bucket, new ConnectionStatistics(),
+                (bucketName, docName) -> { });
+        try {
+            // First document blocks the flusher, the others end up in one batch
+            assertTrue(buffer.offer("default", createDocument("first", 0), 1000));
+            assertTrue(started.await(1, TimeUnit.MINUTES));
+            for (int i = 0; i < 10; i++) {
+                assertTrue(buffer.offer("default", createDocument("doc", i), 1000));
+            }
+            available.countDown();
+
+            assertTrue(buffer.flush(60000));
+            assertEquals(11, buffer.getProcessed());
+            assertEquals(2, upserts.get());
+
+        } finally {
+            buffer.close(1000);
+        }
+    }
+
+    @Test
+    public void backpressure() throws InterruptedException {
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch available = new CountDownLatch(1);
+        final AsyncBucket bucket = createBucket(new AtomicInteger(), started, available);
+
+        final WriteBehindBuffer buffer = new WriteBehindBuffer("test", 2, bucketName -> bucket, new ConnectionStatistics(),
+                (bucketName, docName) -> { });
+        try {
+            // Flusher takes the first document and blocks, the buffer holds two more
+            assertTrue(buffer.offer("default", createDocument("doc0", 0), 1000));
+            assertTrue(started.await(1, TimeUnit.MINUTES));
+            assertTrue(buffer.offer("default", createDocument("doc1", 1), 1000));
+            assertTrue(buffer.offer("default", createDocument("doc2", 2), 1000));
+
+            // Buffer is full
+            assertFalse(buffer.offer("default", createDocument("doc3", 3), 50));
+            assertFalse(buffer.flush(50));
+
+            available.countDown();
+            assertTrue(buffer.flush(60000));
+            assertEquals(3, buffer.getProcessed());
+
+        } finally {
+            buffer.close(1000);
+        }
+
+        // Closed buffer does not accept documents
+        try {
+            buffer.offer("default", createDocument("doc4", 4), 1000);
+            fail("Closed buffer accepted document");
+        } catch (final IllegalStateException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void flushBarrierPerCaller() throws Exception {
+
+        final AsyncBucket bucket = createBucket(new AtomicInteger(), new CountDownLatch(1), new CountDownLatch(0));
+        final Set<String> written = ConcurrentHashMap.newKeySet();
+
+        final WriteBehindBuffer buffer = new WriteBehindBuffer("test", 100, bucketName -> bucket, new ConnectionStatistics(),
+                (bucketName, docName) -> written.add(docName));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final int thread = t;
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        assertTrue(buffer.offer("default", createDocument("doc" + thread + "-" + i, i), 60000));
+                    }
+
+                    // Everything added by this caller has been written
+                    assertTrue(buffer.flush(60000));
+                    for (int i = 0; i < 200; i++) {
+                        assertTrue(written.contains("doc" + thread + "-" + i));
+                    }
+                    return true;
+                }));
+            }
+
+            for (final Future<Boolean> result : results) {
+                assertTrue(result.get(1, TimeUnit.MINUTES));
+            }
+
+        } finally {
+            executor.shutdownNow();
+            buffer.close(1000);
+        }
+    }
+}